@@ -1,6 +1,8 @@
 cd ..
 set CLASSPATH=".;./build/commons-cli-1.4.jar;./build/commons-math3-3.6.1.jar;"
 javac ./cli/*.java ./ui/*.java ./util/*.java
-jar -cfm ./build/MyProgram.jar ./build/manifest.txt ./cli/*.class ./ui/*.class ./util/*.class
+rem optional vector api kernel, needs jdk 16 or newer, the program works without it
+javac --add-modules jdk.incubator.vector ./util/vector/*.java
+jar -cfm ./build/MyProgram.jar ./build/manifest.txt ./cli/*.class ./ui/*.class ./util/*.class ./util/vector/*.class
 xcopy /E /C /I .\resources .\build\resources
 
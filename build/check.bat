@@ -0,0 +1,12 @@
+cd ..
+set CLASSPATH=".;./check;./build/commons-cli-1.4.jar;./build/commons-math3-3.6.1.jar;"
+rem run after build.bat, every check exits with 1 when a bound is exceeded
+javac ./check/util/*.java ./check/cli/*.java
+java util.PerspectiveTransformCheck
+rem 3 waves of 500 concurrent requests on the loopback, "java cli.CropServerLoadCheck 5 2000" is the full load
+rem the requests run on virtual threads only on java 21 and later, set JAVA21_HOME to run it there
+if defined JAVA21_HOME (
+	"%JAVA21_HOME%\bin\java" cli.CropServerLoadCheck
+) else (
+	java cli.CropServerLoadCheck
+)
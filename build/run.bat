@@ -1 +1 @@
-java -jar MyProgram.jar -g
\ No newline at end of file
+java --add-modules jdk.incubator.vector -jar MyProgram.jar -g
\ No newline at end of file
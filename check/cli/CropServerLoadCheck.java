@@ -0,0 +1,157 @@
+package cli;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpServer;
+
+import util.ImageEncoder;
+import util.Interpolation;
+
+/**
+ * loads {@link CropServer} with waves of concurrent requests on the loopback and checks
+ * every one is answered, exits with 1 when a check fails.<br>
+ * the server has two threads and a memory budget of {@link #MEMORY} bytes, a few tens of the
+ * uploads and a few crops fit at once so most requests wait in the budget and the scheduler.
+ * on java 21 and later the requests run on virtual threads, on older versions on the
+ * cached pool {@link CropServer#requestExecutor()} falls back to.
+ * <pre>
+ * every wave sends its requests at once and waits for all of them, 3 waves of 500 by default
+ * status       every request of every wave is answered with 200
+ * result       every response is the same cropped image
+ * spread       the p99 latency of no wave is more then SPREAD times the lowest p99 of
+ *              the waves, a server that queues, leaks or runs out of threads grows it
+ * run from the project folder after building:
+ * java -cp .;check;build/commons-cli-1.4.jar;build/commons-math3-3.6.1.jar cli.CropServerLoadCheck [waves] [requests]
+ * the full load, a few minutes on one core: cli.CropServerLoadCheck 5 2000
+ * </pre>
+ */
+public class CropServerLoadCheck {
+
+	/**
+	 * the most the p99 latency of a wave may be over the lowest p99 of the waves
+	 */
+	private static final double SPREAD = 3;
+	/**
+	 * the memory budget of the server, a quarter of it for the uploads
+	 */
+	private static final long MEMORY = 4_000_000;
+	private static final int THREADS = 2;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		int waves = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		System.out.println("java " + Runtime.version() + ", the requests run on " 
+				+ (Runtime.version().feature() >= 21 ? "virtual threads" : "a cached thread pool, virtual threads need java 21"));
+		byte[] image = image();
+		System.out.println("the image has " + image.length + " bytes, about " + MEMORY / 4 / image.length + " uploads fit at once");
+		HttpServer server = new CropServer(Interpolation.BILINEAR, 0, false, new ImageEncoder(), "png", THREADS, MEMORY)
+				.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		try {
+			String coords = URLEncoder.encode("(10,12),(300,4),(310,230),(6,220)", StandardCharsets.UTF_8);
+			URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/crop?coords=" + coords);
+			HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(30)).build();
+
+			byte[] expected = null;
+			double lowest = Double.MAX_VALUE;
+			double[] p99s = new double[waves];
+			for(int w=0;w<waves;w++) {
+				long start = System.nanoTime();
+				List<CompletableFuture<Object[]>> answers = new ArrayList<>(requests);
+				for(int i=0;i<requests;i++) {
+					HttpRequest request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(120))
+							.POST(HttpRequest.BodyPublishers.ofByteArray(image)).build();
+					long sent = System.nanoTime();
+					answers.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+							.thenApply(new Function<HttpResponse<byte[]>, Object[]>() {
+								@Override
+								public Object[] apply(HttpResponse<byte[]> response) {
+									return new Object[] { response.statusCode(), System.nanoTime() - sent, response.body() };
+								}
+							}));
+				}
+
+				long[] latencies = new long[requests];
+				int errors = 0, different = 0;
+				for(int i=0;i<requests;i++) {
+					Object[] answer;
+					try {
+						answer = answers.get(i).join();
+					} catch(RuntimeException e) {
+						errors++;
+						latencies[i] = System.nanoTime() - start;
+						continue;
+					}
+					latencies[i] = (Long) answer[1];
+					if((Integer) answer[0] != 200) {
+						errors++;
+						continue;
+					}
+					if(expected == null) {
+						expected = (byte[]) answer[2];
+					} else if(!Arrays.equals(expected, (byte[]) answer[2])) {
+						different++;
+					}
+				}
+				Arrays.sort(latencies);
+				p99s[w] = latencies[requests * 99 / 100] / 1e6;
+				lowest = Math.min(lowest, p99s[w]);
+				System.out.printf("wave %d: %d requests in %d ms, p50 %.1f p99 %.1f max %.1f ms, failed %d, different %d%n",
+						w, requests, (System.nanoTime() - start) / 1000000, latencies[requests / 2] / 1e6, p99s[w],
+						latencies[requests - 1] / 1e6, errors, different);
+				check(errors == 0, "wave " + w + ": " + errors + " requests failed");
+				check(different == 0, "wave " + w + ": " + different + " responses differ from the first");
+			}
+			for(int w=0;w<waves;w++) {
+				check(p99s[w] <= lowest * SPREAD, "wave " + w + ": p99 " + p99s[w] + " ms > " + SPREAD + " * " + lowest + " ms");
+			}
+		} finally {
+			server.stop(0);
+		}
+		System.out.println(failures == 0 ? "all checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @return a generated 320x240 image encoded as jpg, noise keeps it at tens of KB like a photo
+	 */
+	private static byte[] image() throws IOException {
+		BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(7);
+		for(int y=0;y<image.getHeight();y++) {
+			for(int x=0;x<image.getWidth();x++) {
+				image.setRGB(x, y, ((x * 255 / 319) << 16 | (y * 255 / 239) << 8) ^ random.nextInt(0x1000000) & 0x3f3f3f);
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", out);
+		return out.toByteArray();
+	}
+
+	private static void check(boolean passed, String message) {
+		if(!passed) {
+			failures++;
+			System.out.println("FAILED: " + message);
+		}
+	}
+}
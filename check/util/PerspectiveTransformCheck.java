@@ -0,0 +1,333 @@
+package util;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularMatrixException;
+
+/**
+ * checks the accuracy of {@link PerspectiveTransform} against the bounds its documentation
+ * promises, exits with 1 when a bound is exceeded.
+ * <pre>
+ * solver       the closed form {@link PerspectiveTransform#matrix(int[][], int[][], double[])} against
+ *              the 9x9 system solved by gaussian elimination (LU) it replaced, over random and
+ *              near-degenerate quads, and the degenerate quads both reject
+ * incremental  the positions and the pixels of {@link WarpOptions#setIncremental(boolean)}
+ *              against the exact evaluation
+ * run from the project folder after building:
+ * java -cp .;check;build/commons-math3-3.6.1.jar util.PerspectiveTransformCheck
+ * </pre>
+ */
+public class PerspectiveTransformCheck {
+
+	/**
+	 * the most a corner of the source quad may move when the destination corner is mapped back, in pixels
+	 */
+	private static final double CORNER_BOUND = 1e-6;
+	/**
+	 * the most the closed form and LU may differ in a source position, in pixels
+	 */
+	private static final double SOLVER_BOUND = 1e-6;
+	/**
+	 * the corner error and the solver difference of the near-degenerate quads, the matrix of a quad
+	 * that is almost a triangle is ill conditioned whichever way it is solved, in pixels
+	 */
+	private static final double NEAR_DEGENERATE_BOUND = 1e-4;
+	/**
+	 * the most an incremental source position may drift from the exact one, in pixels
+	 */
+	private static final double DRIFT_BOUND = 1e-8;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) {
+		Random random = new Random(7);
+		solver(random);
+		nearDegenerate(random);
+		degenerate();
+		drift(random);
+		pixels(random);
+		System.out.println(failures == 0 ? "all checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * random convex quads on small and huge images.
+	 */
+	private static void solver(Random random) {
+		for(int size : new int[] { 5000, 10000, 100000 }) {
+			double closedCorner = 0, luCorner = 0, difference = 0;
+			int quads = 0;
+			while(quads < 20000) {
+				int[][] quad = randomQuad(random, size, size / 3);
+				if(!convex(quad)) {
+					continue;
+				}
+				quads++;
+				int[][] square = PerspectiveTransform.maximizeSquareTranslation(quad);
+				double[][] closed = PerspectiveTransform.matrix(quad, square), lu = gaussian(quad, square);
+				closedCorner = Math.max(closedCorner, cornerError(closed, quad, square));
+				luCorner = Math.max(luCorner, cornerError(lu, quad, square));
+				difference = Math.max(difference, difference(closed, lu, square));
+			}
+			System.out.printf("solver %6d px, %d quads: corner error closed form %.2e LU %.2e, closed form - LU %.2e px%n",
+					size, quads, closedCorner, luCorner, difference);
+			check(closedCorner <= CORNER_BOUND, "closed form corner error " + closedCorner + " > " + CORNER_BOUND);
+			check(difference <= SOLVER_BOUND, "closed form - LU " + difference + " > " + SOLVER_BOUND);
+		}
+	}
+
+	/**
+	 * quads a pixel or two away from degenerate, a corner almost on the line of its neighbors,
+	 * two corners almost on each other and slivers one pixel thick.
+	 */
+	private static void nearDegenerate(Random random) {
+		double[] closedCorner = new double[3], luCorner = new double[3], difference = new double[3];
+		int quads = 0, rejected = 0;
+		for(int t=0;t<20000;t++) {
+			int size = 1000 + random.nextInt(9000);
+			int[][] quad = randomQuad(random, size, size / 3);
+			switch(t % 3) {
+			case 0:
+				// the third corner within a pixel of the line from the second to the fourth
+				quad[2][0] = (quad[1][0] + quad[3][0]) / 2 + 1 + random.nextInt(2);
+				quad[2][1] = (quad[1][1] + quad[3][1]) / 2 + 1 + random.nextInt(2);
+				break;
+			case 1:
+				// the second corner a pixel from the first
+				quad[1][0] = quad[0][0] + 1;
+				quad[1][1] = quad[0][1] + random.nextInt(2);
+				break;
+			default:
+				// a sliver
+				quad = new int[][] { {0, 0}, {size, 0}, {size, 1 + random.nextInt(2)}, {0, 1} };
+			}
+			PerspectiveTransform.arrange4PointsClockwise(quad);
+			if(!convex(quad)) {
+				continue;
+			}
+			int[][] square = PerspectiveTransform.maximizeSquareTranslation(quad);
+			if(square[2][0] < 1 || square[2][1] < 1) {
+				continue;
+			}
+			double[][] closed;
+			try {
+				closed = PerspectiveTransform.matrix(quad, square);
+			} catch(SingularMatrixException e) {
+				rejected++;
+				continue;
+			}
+			quads++;
+			double[][] lu = gaussian(quad, square);
+			int c = t % 3;
+			closedCorner[c] = Math.max(closedCorner[c], cornerError(closed, quad, square));
+			luCorner[c] = Math.max(luCorner[c], cornerError(lu, quad, square));
+			difference[c] = Math.max(difference[c], difference(closed, lu, square));
+		}
+		System.out.printf("near degenerate, %d quads, %d rejected%n", quads, rejected);
+		String[] names = { "corner near a line", "corners a pixel apart", "sliver" };
+		for(int c=0;c<3;c++) {
+			System.out.printf("  %-22s corner error closed form %.2e LU %.2e, closed form - LU %.2e px%n", 
+					names[c], closedCorner[c], luCorner[c], difference[c]);
+			check(closedCorner[c] <= NEAR_DEGENERATE_BOUND, names[c] + " corner error " + closedCorner[c] 
+					+ " > " + NEAR_DEGENERATE_BOUND);
+			check(difference[c] <= NEAR_DEGENERATE_BOUND, names[c] + " closed form - LU " + difference[c] 
+					+ " > " + NEAR_DEGENERATE_BOUND);
+		}
+	}
+
+	/**
+	 * collinear points and repeated corners, as the source and as the destination, are
+	 * rejected by the closed form wherever LU rejects them.
+	 */
+	private static void degenerate() {
+		int[][][] quads = { { {0, 0}, {10, 0}, {20, 0}, {5, 0} }, { {0, 0}, {0, 0}, {10, 10}, {0, 10} },
+				{ {0, 0}, {10, 10}, {20, 20}, {30, 30} }, { {0, 0}, {10, 0}, {10, 10}, {10, 10} } };
+		int[][] square = { {0, 0}, {10, 0}, {10, 10}, {0, 10} };
+		for(int[][] quad : quads) {
+			for(boolean source : new boolean[] { true, false }) {
+				int[][] src = source ? quad : square, dest = source ? square : quad;
+				boolean closed = rejects(src, dest, true), lu = rejects(src, dest, false);
+				check(closed || !lu, "closed form accepts a degenerate quad LU rejects " + Arrays.deepToString(quad));
+			}
+		}
+		System.out.println("degenerate, " + quads.length * 2 + " cases: checked");
+	}
+
+	/**
+	 * the incremental source positions against the exact ones, stepped as
+	 * {@link PerspectiveTransform} steps them with {@link PerspectiveTransform#ANCHOR}.
+	 */
+	private static void drift(Random random) {
+		for(int size : new int[] { 20000, 100000 }) {
+			double worst = 0;
+			for(int t=0;t<100;t++) {
+				int[][] quad = randomQuad(random, size, size / 4);
+				PerspectiveTransform.arrange4PointsClockwise(quad);
+				int[][] square = PerspectiveTransform.maximizeSquareTranslation(quad);
+				double[][] m = PerspectiveTransform.matrix(quad, square);
+				int width = square[2][0], height = square[2][1];
+				for(int k=0;k<10;k++) {
+					int y = random.nextInt(height);
+					double cx = y*m[0][1] + m[0][2], cy = y*m[1][1] + m[1][2], cw = y*m[2][1] + m[2][2];
+					double NX = 0, NY = 0, W = 0;
+					for(int x=0;x<width;x++) {
+						if(x % PerspectiveTransform.ANCHOR == 0) {
+							W = x*m[2][0] + cw;
+							NX = x*m[0][0] + cx;
+							NY = x*m[1][0] + cy;
+						} else {
+							W += m[2][0];
+							NX += m[0][0];
+							NY += m[1][0];
+						}
+						double We = x*m[2][0] + y*m[2][1] + m[2][2];
+						double X = (x*m[0][0] + y*m[0][1] + m[0][2]) / We, Y = (x*m[1][0] + y*m[1][1] + m[1][2]) / We;
+						if(X >= -1 && X <= size + 1 && Y >= -1 && Y <= size + 1) {
+							worst = Math.max(worst, Math.max(Math.abs(NX / W - X), Math.abs(NY / W - Y)));
+						}
+					}
+				}
+			}
+			System.out.printf("incremental %6d px: source position drift %.2e px%n", size, worst);
+			check(worst <= DRIFT_BOUND, "incremental drift " + worst + " > " + DRIFT_BOUND);
+		}
+	}
+
+	/**
+	 * images built with the incremental evaluation differ from the exact ones by at most
+	 * one in a channel.
+	 */
+	private static void pixels(Random random) {
+		BufferedImage source = new BufferedImage(1600, 1200, BufferedImage.TYPE_INT_ARGB);
+		int[] data = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+		for(int i=0;i<data.length;i++) {
+			data[i] = random.nextInt();
+		}
+		int worst = 0;
+		long differ = 0, total = 0;
+		for(int t=0;t<10;t++) {
+			int[][] quad = randomQuad(random, 1200, 300);
+			PerspectiveTransform.arrange4PointsClockwise(quad);
+			int[][] square = PerspectiveTransform.maximizeSquareTranslation(quad);
+			double[][] m = PerspectiveTransform.matrix(quad, square);
+			int width = square[2][0], height = square[2][1];
+			BufferedImage exact = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB),
+					incremental = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			PerspectiveTransform.writeTransformed(source, width, height, m, exact, new WarpOptions());
+			PerspectiveTransform.writeTransformed(source, width, height, m, incremental, new WarpOptions().setIncremental(true));
+			int[] a = ((DataBufferInt) exact.getRaster().getDataBuffer()).getData(),
+					b = ((DataBufferInt) incremental.getRaster().getDataBuffer()).getData();
+			for(int i=0;i<a.length;i++) {
+				int most = 0;
+				for(int shift=0;shift<32;shift+=8) {
+					most = Math.max(most, Math.abs(((a[i] >>> shift) & 0xff) - ((b[i] >>> shift) & 0xff)));
+				}
+				worst = Math.max(worst, most);
+				differ += most > 0 ? 1 : 0;
+			}
+			total += a.length;
+		}
+		System.out.printf("incremental pixels: largest channel difference %d, %d of %d pixels differ%n", worst, differ, total);
+		check(worst <= 1, "incremental channel difference " + worst + " > 1");
+	}
+
+	/**
+	 * the matrix solved as it was before the closed form, the 9x9 system by LU decomposition.
+	 */
+	static double[][] gaussian(int[][] src, int[][] dest) {
+		double[][] A = new double[9][9];
+		for(int i=0;i<4;i++) {
+			double x = dest[i][0], y = dest[i][1], X = src[i][0], Y = src[i][1];
+			A[2*i] = new double[] { x, y, 1, 0, 0, 0, -X*x, -X*y, -X };
+			A[2*i+1] = new double[] { 0, 0, 0, x, y, 1, -Y*x, -Y*y, -Y };
+		}
+		A[8][8] = 1;
+		double[] b = { 0, 0, 0, 0, 0, 0, 0, 0, 1 };
+		RealMatrix x = new LUDecomposition(new Array2DRowRealMatrix(A)).getSolver().solve(new Array2DRowRealMatrix(b));
+		double[][] X = x.getData();
+		return new double[][] { { X[0][0], X[1][0], X[2][0] }, { X[3][0], X[4][0], X[5][0] }, { X[6][0], X[7][0], X[8][0] } };
+	}
+
+	private static boolean rejects(int[][] src, int[][] dest, boolean closed) {
+		try {
+			double[][] m = closed ? PerspectiveTransform.matrix(src, dest) : gaussian(src, dest);
+			for(double[] row : m) {
+				for(double v : row) {
+					if(Double.isNaN(v) || Double.isInfinite(v)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		} catch(SingularMatrixException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @return the largest distance between a source corner and its destination corner mapped back
+	 */
+	private static double cornerError(double[][] m, int[][] quad, int[][] square) {
+		double worst = 0;
+		for(int k=0;k<4;k++) {
+			double[] p = map(m, square[k][0], square[k][1]);
+			worst = Math.max(worst, Math.max(Math.abs(p[0] - quad[k][0]), Math.abs(p[1] - quad[k][1])));
+		}
+		return worst;
+	}
+
+	/**
+	 * @return the largest distance between the source positions of two matrices over a grid of the destination
+	 */
+	private static double difference(double[][] a, double[][] b, int[][] square) {
+		double worst = 0;
+		for(int i=0;i<=8;i++) {
+			for(int j=0;j<=8;j++) {
+				double x = square[2][0] * i / 8.0, y = square[2][1] * j / 8.0;
+				double[] p = map(a, x, y), q = map(b, x, y);
+				worst = Math.max(worst, Math.max(Math.abs(p[0] - q[0]), Math.abs(p[1] - q[1])));
+			}
+		}
+		return worst;
+	}
+
+	private static double[] map(double[][] m, double x, double y) {
+		double W = x*m[2][0] + y*m[2][1] + m[2][2];
+		return new double[] { (x*m[0][0] + y*m[0][1] + m[0][2]) / W, (x*m[1][0] + y*m[1][1] + m[1][2]) / W };
+	}
+
+	/**
+	 * @return four corners, each within margin of its corner of a size x size image
+	 */
+	private static int[][] randomQuad(Random random, int size, int margin) {
+		return new int[][] { {random.nextInt(margin), random.nextInt(margin)},
+							{size - random.nextInt(margin), random.nextInt(margin)},
+							{size - random.nextInt(margin), size - random.nextInt(margin)},
+							{random.nextInt(margin), size - random.nextInt(margin)} };
+	}
+
+	private static boolean convex(int[][] quad) {
+		int sign = 0;
+		for(int i=0;i<4;i++) {
+			int[] a = quad[i], b = quad[(i+1) % 4], c = quad[(i+2) % 4];
+			int s = Long.signum((long) (b[0] - a[0]) * (c[1] - b[1]) - (long) (b[1] - a[1]) * (c[0] - b[0]));
+			if(s == 0 || (sign != 0 && s != sign)) {
+				return false;
+			}
+			sign = s;
+		}
+		return true;
+	}
+
+	private static void check(boolean passed, String message) {
+		if(!passed) {
+			failures++;
+			System.out.println("FAILED: " + message);
+		}
+	}
+}
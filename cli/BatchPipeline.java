@@ -0,0 +1,230 @@
+package cli;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.ImageEncoder;
+import util.Interpolation;
+
+/**
+ * crop the images of a manifest in three stages that run at the same time, decoding,
+ * building the cropped image and encoding, see {@link CropJob} for the manifest format.
+ * <pre>
+ * manifest -&gt; [decode queue] -&gt; decode pool -&gt; [warp queue] -&gt; warp pool -&gt; [encode queue] -&gt; encode pool
+ * </pre>
+ * every stage has its own threads and takes its jobs from a bounded queue, a full queue
+ * stops the stage before it so only a few images are held in memory, and reading the
+ * disk overlaps building the cropped images.<br>
+ * the warp stage has twice as many workers as the threads that build the images, the
+ * workers that wait hold decoded images that {@link CropScheduler} starts small first so
+ * a huge image does not hold up the small ones after it.<br>
+ * a decoder reads the size of an image from its header and waits for the memory the job
+ * needs before it decodes it, see {@link MemoryBudget}, the memory is given back when the
+ * job is saved or fails.<br>
+ * a job that fails is reported with its manifest line and dropped, the other jobs go on.
+ */
+class BatchPipeline {
+
+	/**
+	 * a stage of the pipeline applied to a job.
+	 */
+	private interface Stage {
+		void run(CropJob job) throws Exception;
+	}
+
+	/**
+	 * put in a queue after the last job, every worker of the stage that reads it puts it
+	 * back for the other workers of the stage.
+	 */
+	private static final CropJob END = new CropJob(0, null, null, null, null);
+
+	private final Interpolation interpolation;
+	private final int maxDim;
+	private final boolean subsample;
+	private final ImageEncoder encoder;
+	private final String format;
+	private final int decoders, warpers, encoders;
+	private final MemoryBudget budget;
+	private final AtomicInteger saved = new AtomicInteger(), failed = new AtomicInteger();
+
+	/**
+	 * @param interpolation the way every image is sampled
+	 * @param maxDim shrink the cropped images so their longer side is at most this, 0 to keep their size
+	 * @param subsample decode only every n-th pixel of images much larger then their crop
+	 * @param encoder settings of the saved images, not changed while the pipeline runs
+	 * @param format the format of a job that does not set one and whose output name does not tell
+	 * @param decoders number of threads that decode
+	 * @param warpers number of threads that build the cropped images, each image is built on one thread
+	 * @param encoders number of threads that encode and write
+	 * @param budget the memory the jobs between decoding and saving may take
+	 */
+	BatchPipeline(Interpolation interpolation, int maxDim, boolean subsample, ImageEncoder encoder, String format,
+			int decoders, int warpers, int encoders, MemoryBudget budget) {
+		this.interpolation = interpolation;
+		this.maxDim = maxDim;
+		this.subsample = subsample;
+		this.encoder = encoder;
+		this.format = format;
+		this.decoders = decoders;
+		this.warpers = warpers;
+		this.encoders = encoders;
+		this.budget = budget;
+	}
+
+	/**
+	 * @return the number of images saved
+	 */
+	int getSaved() {
+		return saved.get();
+	}
+
+	/**
+	 * @return the number of manifest lines that failed
+	 */
+	int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * crop every image of the manifest and return when all of them are saved or failed.
+	 * @param manifest the manifest lines
+	 * @param folder the folder relative paths are relative to
+	 * @throws IOException if the manifest cannot be read
+	 * @throws InterruptedException if the thread is interrupted while waiting for the stages
+	 */
+	void run(BufferedReader manifest, File folder) throws IOException, InterruptedException {
+		BlockingQueue<CropJob> decodeQueue = new ArrayBlockingQueue<>(decoders),
+				warpQueue = new ArrayBlockingQueue<>(warpers),
+				encodeQueue = new ArrayBlockingQueue<>(encoders);
+
+		ExecutorService decodePool = start(decoders, decodeQueue, warpQueue, false, new Stage() {
+			@Override
+			public void run(CropJob job) throws Exception {
+				job.plan(maxDim, subsample);
+				// only this decoder waits, the others go on with the jobs that fit
+				budget.acquire(job.bytes);
+				try {
+					job.decode(interpolation, maxDim, subsample);
+				} catch(Exception | OutOfMemoryError e) {
+					budget.release(job.bytes);
+					throw e;
+				}
+			}
+		});
+		CropScheduler scheduler = new CropScheduler(warpers);
+		ExecutorService warpPool = start(warpers * 2, warpQueue, encodeQueue, true, new Stage() {
+			@Override
+			public void run(CropJob job) throws Exception {
+				scheduler.acquire(job.pixels);
+				try {
+					job.warp();
+				} finally {
+					scheduler.release(job.pixels);
+				}
+			}
+		});
+		ExecutorService encodePool = start(encoders, encodeQueue, null, true, new Stage() {
+			@Override
+			public void run(CropJob job) throws Exception {
+				job.encode(encoder);
+			}
+		});
+
+		try {
+			String text;
+			int line = 0;
+			while((text = manifest.readLine()) != null) {
+				line++;
+				try {
+					CropJob job = CropJob.parse(text, line, folder, format);
+					if(job != null) {
+						decodeQueue.put(job);
+					}
+				} catch(IllegalArgumentException e) {
+					fail(line, null, e);
+				}
+			}
+		} finally {
+			// the stages finish the jobs already read even when the manifest fails
+			decodeQueue.put(END);
+			for(ExecutorService pool : new ExecutorService[] { decodePool, warpPool, encodePool }) {
+				pool.shutdown();
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			}
+		}
+	}
+
+	/**
+	 * start the workers of a stage.
+	 * @param next the queue of the next stage, null for the last stage
+	 * @param admitted whether the jobs of the stage hold their memory
+	 */
+	private ExecutorService start(int workers, BlockingQueue<CropJob> queue, BlockingQueue<CropJob> next, 
+			boolean admitted, Stage stage) {
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		AtomicInteger running = new AtomicInteger(workers);
+		for(int i=0;i<workers;i++) {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					work(queue, next, admitted, stage, running);
+				}
+			});
+		}
+		return pool;
+	}
+
+	private void work(BlockingQueue<CropJob> queue, BlockingQueue<CropJob> next, boolean admitted, Stage stage, 
+			AtomicInteger running) {
+		try {
+			while(true) {
+				CropJob job = queue.take();
+				if(job == END) {
+					queue.put(END);
+					break;
+				}
+				try {
+					stage.run(job);
+				} catch(Exception | OutOfMemoryError e) {
+					// only this job's images are dropped
+					job.image = job.cropped = null;
+					if(admitted) {
+						budget.release(job.bytes);
+					}
+					fail(job.line, job.input, e);
+					continue;
+				}
+				if(next != null) {
+					next.put(job);
+				} else {
+					budget.release(job.bytes);
+					saved.incrementAndGet();
+					System.out.println("Saved to " + job.output.getPath());
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// the last worker of the stage to finish ends the next stage
+			if(running.decrementAndGet() == 0 && next != null) {
+				try {
+					next.put(END);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private void fail(int line, File input, Throwable e) {
+		failed.incrementAndGet();
+		String message = e.getMessage() != null ? e.getMessage() : e.toString();
+		System.err.println("error: line " + line + (input != null ? " (" + input.getPath() + ")" : "") + ": " + message);
+	}
+}
@@ -0,0 +1,311 @@
+package cli;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.ImageEncoder;
+import util.Interpolation;
+
+/**
+ * crop images for other programs through a Unix domain socket.<br>
+ * one JVM serves every crop so only the first pays the startup, the class loading and the
+ * JIT warm-up, which is also done before the socket accepts. every connection is served on
+ * its own thread and may send any number of requests one after the other, the crops of all
+ * the connections are limited to the number of threads at once, small crops first (see
+ * {@link CropScheduler}), and to the memory budget, see {@link MemoryBudget}.
+ * <pre>
+ * a frame is a 4 byte big endian length and that many bytes.
+ * request:  frame  a JSON object in UTF-8, the names of a manifest line (see {@link CropJob})
+ *                  {"input": "/scans/a.jpg", "coords": [[3,3],[16,56],[73,55],[62,14]], "output": "/crops/a.png"}
+ *           frame  the encoded input image when there is no input, otherwise empty
+ * response: frame  a JSON object in UTF-8
+ *                  {"width": 1200, "height": 900, "format": "png", "output": "/crops/a.png"}
+ *                  or {"error": "message"}
+ *           frame  the encoded cropped image when there is no output, otherwise empty
+ * </pre>
+ * without an output and a format the cropped image is encoded in the default format.
+ * relative paths are relative to the folder the daemon was started in. a frame longer
+ * then its limit closes the connection, the limit of the image is a quarter of the memory
+ * budget.<br>
+ * the images sent in the requests are counted in that quarter, a request waits for the
+ * length of its image there before it is read and keeps it until its response is sent.
+ * the rest of the budget is for decoding, building and encoding the crops, the two are
+ * separate so images waiting for the rest never hold all the memory the running crops need.
+ */
+class CropDaemon {
+
+	/**
+	 * the longest JSON frame accepted
+	 */
+	private static final int MAX_HEADER = 1 << 20;
+
+	private final Interpolation interpolation;
+	private final int maxDim;
+	private final boolean subsample;
+	private final ImageEncoder encoder;
+	private final String format;
+	private final CropScheduler crops;
+	private final MemoryBudget uploads, budget;
+	private final AtomicInteger requests = new AtomicInteger();
+
+	/**
+	 * @param interpolation the way every image is sampled
+	 * @param maxDim shrink the cropped images so their longer side is at most this, 0 to keep their size
+	 * @param subsample decode only every n-th pixel of images much larger then their crop
+	 * @param encoder settings of the saved images, not changed while the daemon runs
+	 * @param format the format of a request that does not set one and whose output name does not tell
+	 * @param threads number of images cropped at once, each on one thread
+	 * @param memory the number of bytes the sent images and the images cropped at once may take
+	 */
+	CropDaemon(Interpolation interpolation, int maxDim, boolean subsample, ImageEncoder encoder, String format, int threads,
+			long memory) {
+		this.interpolation = interpolation;
+		this.maxDim = maxDim;
+		this.subsample = subsample;
+		this.encoder = encoder;
+		this.format = format;
+		this.crops = new CropScheduler(threads);
+		this.uploads = new MemoryBudget(memory / 4);
+		this.budget = new MemoryBudget(memory - memory / 4);
+	}
+
+	/**
+	 * listen on socket and serve the connections until the process ends.<br>
+	 * a socket file left by a daemon that is not running is replaced, it is deleted when
+	 * the process ends.
+	 * @param socket the path of the socket file
+	 * @throws IOException if the socket cannot be opened or another daemon listens on it
+	 */
+	void serve(Path socket) throws IOException {
+		UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+		if(Files.exists(socket)) {
+			boolean running;
+			try {
+				SocketChannel.open(address).close();
+				running = true;
+			} catch(IOException e) {
+				running = false;
+			}
+			if(running) {
+				throw new IOException("a daemon already listens on " + socket);
+			}
+			Files.delete(socket);
+		}
+
+		warmUp();
+
+		ExecutorService connections = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "crop-connection");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try(ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(address);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					try {
+						Files.deleteIfExists(socket);
+					} catch(IOException e) {
+						// the process ends anyway
+					}
+				}
+			});
+			System.out.println("Listening on " + socket);
+			while(true) {
+				SocketChannel channel = server.accept();
+				connections.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(channel);
+					}
+				});
+			}
+		} finally {
+			connections.shutdownNow();
+		}
+	}
+
+	/**
+	 * answer the requests of a connection until it is closed.
+	 */
+	private void serve(SocketChannel channel) {
+		try(channel) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			while(true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch(EOFException e) {
+					// closed between requests
+					return;
+				}
+				String header = new String(frame(in, length, MAX_HEADER), StandardCharsets.UTF_8);
+				length = in.readInt();
+				if(length < 0 || length > Math.min(uploads.getCapacity(), Integer.MAX_VALUE - 8)) {
+					throw new IOException("invalid frame length " + length);
+				}
+				// the image is counted before it is read
+				uploads.acquire(length);
+				try {
+					byte[] data = frame(in, length, length);
+
+					CropJob job = null;
+					long work = 0;
+					String response;
+					try {
+						job = request(header, data);
+						work = job.bytes - (job.data != null ? job.data.length : 0);
+						crop(job, work);
+						response = "{\"width\": " + job.width + ", \"height\": " + job.height + ", \"format\": " + quote(job.format)
+								+ (job.output != null ? ", \"output\": " + quote(job.output.getAbsolutePath()) : "") + "}";
+					} catch(Exception | OutOfMemoryError e) {
+						job = null;
+						work = 0;
+						response = "{\"error\": " + quote(e.getMessage() != null ? e.getMessage() : e.toString()) + "}";
+					}
+					// the encoded result is counted until it is sent, a slow client holds its memory
+					try {
+						byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+						byte[] result = job != null && job.result != null ? job.result : new byte[0];
+						out.writeInt(bytes.length);
+						out.write(bytes);
+						out.writeInt(result.length);
+						out.write(result);
+						out.flush();
+					} finally {
+						budget.release(work);
+					}
+				} finally {
+					uploads.release(length);
+				}
+			}
+		} catch(IOException e) {
+			// the connection is lost or broke the protocol, the other connections go on
+		} catch(InterruptedException e) {
+			// the daemon stops
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * read a frame of the given length.
+	 * @throws IOException if the length is out of [0, max] or the connection ends first
+	 */
+	private static byte[] frame(DataInputStream in, int length, int max) throws IOException {
+		if(length < 0 || length > max) {
+			throw new IOException("invalid frame length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * the job of a request, planned.
+	 * @param header the JSON object of the request
+	 * @param data the encoded image when the request has no input
+	 */
+	private CropJob request(String header, byte[] data) throws IOException {
+		CropJob job = CropJob.parseRequest(header, requests.incrementAndGet(), format);
+		if(job.input == null) {
+			if(data.length == 0) {
+				throw new IllegalArgumentException("input image is missing");
+			}
+			job.data = data;
+		}
+		// the header tells the size and the memory of the crop before it is decoded
+		job.plan(maxDim, subsample);
+		return job;
+	}
+
+	/**
+	 * crop the image of a planned job, the cropped image is in {@link CropJob#result} when
+	 * it has no output.<br>
+	 * the work bytes stay taken from the budget when the crop succeeds, until the caller
+	 * has sent the result, they are given back when it fails.
+	 * @param work the memory of the crop without a sent image, which is already counted
+	 */
+	private void crop(CropJob job, long work) throws Exception {
+		budget.check(work);
+		crops.acquire(job.pixels);
+		try {
+			budget.acquire(work);
+			try {
+				job.decode(interpolation, maxDim, subsample);
+				job.warp();
+				job.encode(encoder);
+			} catch(Exception | Error e) {
+				budget.release(work);
+				throw e;
+			}
+		} finally {
+			crops.release(job.pixels);
+		}
+	}
+
+	/**
+	 * @return text as a JSON string
+	 */
+	private static String quote(String text) {
+		StringBuilder result = new StringBuilder("\"");
+		for(int i=0;i<text.length();i++) {
+			char c = text.charAt(i);
+			if(c == '"' || c == '\\') {
+				result.append('\\').append(c);
+			} else if(c < 0x20) {
+				result.append(String.format("\\u%04x", (int) c));
+			} else {
+				result.append(c);
+			}
+		}
+		return result.append('"').toString();
+	}
+
+	/**
+	 * crop a few generated images so the decoding, the transform and the encoding are
+	 * compiled before the first request.
+	 */
+	private void warmUp() throws IOException {
+		BufferedImage image = new BufferedImage(1024, 768, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = image.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, Color.ORANGE, 1024, 768, Color.BLUE));
+		g.fillRect(0, 0, 1024, 768);
+		g.dispose();
+		ByteArrayOutputStream jpg = new ByteArrayOutputStream();
+		encoder.write(image, "jpg", jpg);
+
+		for(int i=0;i<8;i++) {
+			CropJob job = new CropJob(0, null, new int[][] { {40, 30}, {990, 60}, {960, 740}, {20, 700} }, null,
+					i % 2 == 0 ? "png" : "jpg");
+			job.data = jpg.toByteArray();
+			job.decode(interpolation, maxDim, subsample);
+			job.warp();
+			job.encode(encoder);
+		}
+	}
+}
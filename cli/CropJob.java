@@ -0,0 +1,575 @@
+package cli;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferUShort;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import util.ImageEncoder;
+import util.ImagePyramid;
+import util.Interpolation;
+import util.PerspectiveTransform;
+import util.RegionDecoder;
+import util.WarpOptions;
+
+/**
+ * one image to crop in batch mode, see {@link BatchPipeline}, or for a request of
+ * {@link CropDaemon} or {@link CropServer}.<br>
+ * a job is read from a line of the manifest and carries the decoded source and the
+ * cropped image from one stage of the pipeline to the next.
+ * <pre>
+ * manifest lines, CSV or JSON:
+ * input,coords,output,format
+ * scan1.jpg,"(3,3),(16,56),(73,55),(62,14)",scan1-crop.png,png
+ * {"input": "scan2.jpg", "coords": [[3,3],[16,56],[73,55],[62,14]], "output": "scan2.jpg"}
+ * </pre>
+ * output and format may be left out, the output is then [input image name]-4crop.[format] next
+ * to the input and the format is taken from the output name. relative paths are relative to
+ * the folder of the manifest. empty lines, lines that start with # and a CSV header line that
+ * starts with input are skipped.
+ */
+class CropJob {
+
+	/**
+	 * the manifest line number, 0 for the job that marks the end of the manifest
+	 */
+	final int line;
+	/**
+	 * the input image file, null when the image is given in {@link #data}
+	 */
+	final File input;
+	/**
+	 * the file to save to, null to keep the encoded image in {@link #result}
+	 */
+	final File output;
+	final int[][] points;
+	final String format;
+	/**
+	 * the encoded input image when there is no input file
+	 */
+	byte[] data;
+	/**
+	 * the encoded cropped image when there is no output file
+	 */
+	byte[] result;
+
+	// filled by plan, before the image is decoded
+	/**
+	 * an estimate of the most bytes the job holds at once, the encoded input, the decoded
+	 * area with its pyramid, the cropped image and the encoded result when it is kept
+	 */
+	long bytes;
+	/**
+	 * the number of pixels of the full size of the crop, the cost {@link CropScheduler} classes it by
+	 */
+	long pixels;
+	private Rectangle region;
+	private int subsampling;
+	private boolean shrink;
+
+	// filled by the pipeline stages
+	BufferedImage image;
+	double[][] mmt;
+	int width, height;
+	WarpOptions options;
+	BufferedImage cropped;
+
+	CropJob(int line, File input, int[][] points, File output, String format) {
+		this.line = line;
+		this.input = input;
+		this.points = points;
+		this.output = output;
+		this.format = format;
+	}
+
+	/**
+	 * read a request of the crop daemon, a JSON object of the same names as a manifest line,
+	 * see {@link CropDaemon}. without an input the image is given in {@link #data} and
+	 * without an output the cropped image is kept in {@link #result}.
+	 * @param text the JSON object
+	 * @param number the request number, used in place of a line number
+	 * @param defaultFormat the format when the request has none and the output name does not tell
+	 * @return the job
+	 * @throws IllegalArgumentException if the request is not a valid job
+	 */
+	static CropJob parseRequest(String text, int number, String defaultFormat) {
+		Map<String, Object> fields = new JsonReader(text.trim()).object();
+		String input = string(fields, "input"), output = string(fields, "output");
+		Object coords = fields.get("coords");
+		int[][] points = coords instanceof List ? points((List<?>) coords) : parseCoords(string(fields, "coords"));
+		File out = output == null || output.trim().isEmpty() ? null : new File(output.trim());
+		String format = format(string(fields, "format"), out, defaultFormat);
+		return new CropJob(number, input == null || input.trim().isEmpty() ? null : new File(input.trim()), 
+				points, out, format);
+	}
+
+	/**
+	 * read a manifest line.
+	 * @param text the line
+	 * @param line the line number
+	 * @param folder the folder relative paths are relative to
+	 * @param defaultFormat the format when the line has none and the output name does not tell
+	 * @return the job or null if the line is skipped
+	 * @throws IllegalArgumentException if the line is not a valid job
+	 */
+	static CropJob parse(String text, int line, File folder, String defaultFormat) {
+		String trimmed = text.trim();
+		if(trimmed.isEmpty() || trimmed.startsWith("#")) {
+			return null;
+		}
+		String input, output, format;
+		int[][] points;
+		if(trimmed.startsWith("{")) {
+			Map<String, Object> fields = new JsonReader(trimmed).object();
+			input = string(fields, "input");
+			output = string(fields, "output");
+			format = string(fields, "format");
+			Object coords = fields.get("coords");
+			points = coords instanceof List ? points((List<?>) coords) : parseCoords(string(fields, "coords"));
+		} else {
+			List<String> fields = csv(trimmed);
+			if(fields.get(0).trim().equalsIgnoreCase("input")) {
+				return null;
+			}
+			// unquoted coordinates are split by their commas, join them back
+			int end = 1;
+			while(end < fields.size() && fields.get(end).trim().matches("[\\[\\]() \\d]+")) {
+				end++;
+			}
+			if(end == 1) {
+				// quoted, one field
+				end = Math.min(2, fields.size());
+			}
+			input = fields.get(0);
+			points = parseCoords(String.join(",", fields.subList(1, end)));
+			output = end < fields.size() ? fields.get(end) : null;
+			format = end + 1 < fields.size() ? fields.get(end + 1) : null;
+		}
+
+		if(input == null || input.trim().isEmpty()) {
+			throw new IllegalArgumentException("input image path is missing");
+		}
+		File in = resolve(folder, input.trim());
+		File out = output == null || output.trim().isEmpty() ? null : resolve(folder, output.trim());
+		format = format(format, out, defaultFormat);
+		if(out == null) {
+			out = new File(in.getAbsoluteFile().getParent(), in.getName().replaceAll("\\..+$", "").concat("-4crop." + format));
+		}
+		return new CropJob(line, in, points, out, format);
+	}
+
+	/**
+	 * @return the format given, or the one the output name tells, or defaultFormat
+	 */
+	private static String format(String format, File output, String defaultFormat) {
+		if(format == null || format.trim().isEmpty()) {
+			String name = output == null ? "" : output.getName().toLowerCase();
+			format = name.endsWith(".jpg") || name.endsWith(".jpeg") ? "jpg" : name.endsWith(".png") ? "png" : defaultFormat;
+		}
+		format = format.trim().toLowerCase();
+		if(!format.equals("png") && !format.equals("jpg")) {
+			throw new IllegalArgumentException("output format is not recoginzed, sould be png or jpg.");
+		}
+		return format;
+	}
+
+	private static File resolve(File folder, String path) {
+		File file = new File(path);
+		return file.isAbsolute() || folder == null ? file : new File(folder, path);
+	}
+
+	/**
+	 * read the size of the input image from its header, find the area to decode and the
+	 * size of the cropped image and estimate the {@link #bytes} of the job, without decoding.
+	 * @param maxDim shrink the cropped image so its longer side is at most this, 0 to keep its size
+	 * @param subsample decode only every n-th pixel of an image much larger then its crop
+	 * @throws IOException if the image header cannot be read
+	 */
+	void plan(int maxDim, boolean subsample) throws IOException {
+		int[][] rectangle = points;
+
+		// arrange points to left-top right-top right-bottom left-bottom
+		PerspectiveTransform.arrange4PointsClockwise(rectangle);
+
+		int[][] max = PerspectiveTransform.maximizeSquareTranslation(rectangle);
+		int[][] fit = maxDim > 0 ? PerspectiveTransform.fitSquareTranslation(max, maxDim) : max;
+		width = fit[2][0];
+		height = fit[2][1];
+		if(width < 1 || height < 1) {
+			throw new IllegalArgumentException("the points do not cover an area");
+		}
+		pixels = (long) max[2][0] * max[2][1];
+		mmt = PerspectiveTransform.matrix(rectangle, fit);
+		shrink = fit != max;
+		subsampling = subsample ? RegionDecoder.subsampling(max, fit) : 1;
+
+		int pixelBytes;
+		try(RegionDecoder decoder = open()) {
+			region = decoder.bounds(rectangle, RegionDecoder.MARGIN * subsampling);
+			pixelBytes = decoder.getPixelBytes();
+		}
+		long source = (long) ((region.width + subsampling - 1) / subsampling) 
+				* ((region.height + subsampling - 1) / subsampling) * pixelBytes;
+		if(shrink) {
+			// the pyramid levels add a third
+			source += source / 3;
+		}
+		// int pixels, or 16 bits per channel
+		long destination = (long) width * height * (pixelBytes > 4 ? 8 : 4);
+		long encoded = output != null ? 0 : format.equals("png") ? destination : destination / 4;
+		bytes = (data != null ? data.length : 0) + source + destination + encoded;
+	}
+
+	/**
+	 * decode the part of the input image the points cover and find the transform to it,
+	 * after {@link #plan(int, boolean)} or planning it first.
+	 * @param interpolation the way the image is sampled
+	 * @param maxDim shrink the cropped image so its longer side is at most this, 0 to keep its size
+	 * @param subsample decode only every n-th pixel of an image much larger then its crop
+	 * @throws IOException if the image cannot be decoded
+	 */
+	void decode(Interpolation interpolation, int maxDim, boolean subsample) throws IOException {
+		if(region == null) {
+			plan(maxDim, subsample);
+		}
+		try(RegionDecoder decoder = open()) {
+			image = decoder.read(region, subsampling);
+		}
+		data = null;
+
+		// every image is built on one thread, several images are built at once
+		options = new WarpOptions().setInterpolation(interpolation);
+		if(shrink) {
+			options.setPyramid(new ImagePyramid(image));
+		}
+		double[][] m = PerspectiveTransform.offsetSource(mmt, region.x, region.y);
+		mmt = PerspectiveTransform.scaleSource(m, 1.0 / subsampling);
+	}
+
+	private RegionDecoder open() throws IOException {
+		return input != null ? new RegionDecoder(input) : new RegionDecoder(data);
+	}
+
+	/**
+	 * build the cropped image in the layout it is saved in and release the source.
+	 */
+	void warp() {
+		boolean deep = image.getRaster().getDataBuffer() instanceof DataBufferUShort
+				&& options.getPyramid() == null && options.getInterpolation() == Interpolation.BILINEAR;
+		BufferedImage result;
+		if(format.equals("png")) {
+			result = deep ? deepImage(image, width, height) : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		} else {
+			result = new BufferedImage(width, height,
+					image.getType() == BufferedImage.TYPE_BYTE_GRAY ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+		}
+		PerspectiveTransform.writeTransformed(image, width, height, mmt, result, options);
+		image = null;
+		options = null;
+		cropped = result;
+	}
+
+	/**
+	 * save the cropped image to the output file or encode it to {@link #result}.
+	 * @throws IOException if the image cannot be saved
+	 */
+	void encode(ImageEncoder encoder) throws IOException {
+		try {
+			if(output != null) {
+				encoder.write(cropped, format, output);
+			} else {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				encoder.write(cropped, format, bytes);
+				result = bytes.toByteArray();
+			}
+		} finally {
+			cropped = null;
+		}
+	}
+
+	/**
+	 * encode the cropped image to a stream as it is encoded, in place of the output.
+	 * @param out the stream, it is flushed and not closed
+	 * @throws IOException if the image cannot be written
+	 */
+	void encode(ImageEncoder encoder, OutputStream out) throws IOException {
+		try {
+			encoder.write(cropped, format, out);
+		} finally {
+			cropped = null;
+		}
+	}
+
+	/**
+	 * read four (x,y) coordinates, for example [(3,3),(16,56),(73,55),(62,14)]
+	 * @throws IllegalArgumentException if there are not exactly four points
+	 */
+	static int[][] parseCoords(String coords) {
+		if(coords == null) {
+			throw new IllegalArgumentException("coordinates are missing");
+		}
+		Matcher m1 = Pattern.compile("\\((\\d+,[ ]*\\d+)\\)").matcher(coords);
+		ArrayList<int[]> temp = new ArrayList<>();
+		while(m1.find()) {
+			Matcher m2 = Pattern.compile("\\d+").matcher(m1.group(1));
+			int x, y;
+			m2.find();
+			x = Integer.parseInt(m2.group(0));
+			m2.find();
+			y = Integer.parseInt(m2.group(0));
+			temp.add(new int[]{ x, y });
+		}
+		if(temp.size() != 4) {
+			throw new IllegalArgumentException("coordinates are missing, 4 points are required.");
+		}
+		return temp.toArray(new int[4][2]);
+	}
+
+	/**
+	 * @return four points from a JSON list of [x, y] lists
+	 */
+	private static int[][] points(List<?> coords) {
+		if(coords.size() != 4) {
+			throw new IllegalArgumentException("coordinates are missing, 4 points are required.");
+		}
+		int[][] points = new int[4][2];
+		for(int i=0;i<4;i++) {
+			Object point = coords.get(i);
+			if(!(point instanceof List) || ((List<?>) point).size() != 2
+					|| !(((List<?>) point).get(0) instanceof Double) || !(((List<?>) point).get(1) instanceof Double)) {
+				throw new IllegalArgumentException("a point should be a list of two numbers");
+			}
+			points[i][0] = (int) Math.round((Double) ((List<?>) point).get(0));
+			points[i][1] = (int) Math.round((Double) ((List<?>) point).get(1));
+		}
+		return points;
+	}
+
+	private static String string(Map<String, Object> fields, String name) {
+		Object value = fields.get(name);
+		if(value != null && !(value instanceof String)) {
+			throw new IllegalArgumentException(name + " should be a string");
+		}
+		return (String) value;
+	}
+
+	/**
+	 * split a CSV line, a field in double quotes may contain commas and "" for a quote.
+	 */
+	private static List<String> csv(String text) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for(int i=0;i<text.length();i++) {
+			char c = text.charAt(i);
+			if(quoted) {
+				if(c == '"' && i+1 < text.length() && text.charAt(i+1) == '"') {
+					field.append('"');
+					i++;
+				} else if(c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if(c == '"') {
+				quoted = true;
+			} else if(c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		if(quoted) {
+			throw new IllegalArgumentException("a quote is not closed");
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	/**
+	 * @return an image of 16 bits per channel for the crop of a 16 bit image, gray for a gray
+	 * 			image and RGBA otherwise
+	 */
+	static BufferedImage deepImage(BufferedImage source, int width, int height) {
+		if(source.getRaster().getNumBands() == 1) {
+			return new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+		}
+		ColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false,
+				Transparency.TRANSLUCENT, DataBuffer.TYPE_USHORT);
+		return new BufferedImage(model, model.createCompatibleWritableRaster(width, height), false, null);
+	}
+
+	/**
+	 * reads the JSON values of a manifest line, objects to maps, lists, strings, numbers
+	 * as doubles, booleans and null.
+	 */
+	private static class JsonReader {
+
+		private final String text;
+		private int at = 0;
+
+		JsonReader(String text) {
+			this.text = text;
+		}
+
+		Map<String, Object> object() {
+			Object value = value();
+			skipSpaces();
+			if(!(value instanceof Map) || at != text.length()) {
+				throw error("a line should hold one object");
+			}
+			@SuppressWarnings("unchecked")
+			Map<String, Object> object = (Map<String, Object>) value;
+			return object;
+		}
+
+		private Object value() {
+			skipSpaces();
+			if(at == text.length()) {
+				throw error("unexpected end of line");
+			}
+			char c = text.charAt(at);
+			if(c == '{') {
+				Map<String, Object> object = new LinkedHashMap<>();
+				at++;
+				if(next() == '}') {
+					at++;
+					return object;
+				}
+				do {
+					skipSpaces();
+					if(at == text.length() || text.charAt(at) != '"') {
+						throw error("a name is expected");
+					}
+					String name = string();
+					expect(':');
+					object.put(name, value());
+				} while(separator('}'));
+				return object;
+			}
+			if(c == '[') {
+				List<Object> list = new ArrayList<>();
+				at++;
+				if(next() == ']') {
+					at++;
+					return list;
+				}
+				do {
+					list.add(value());
+				} while(separator(']'));
+				return list;
+			}
+			if(c == '"') {
+				return string();
+			}
+			for(String word : new String[] { "true", "false", "null" }) {
+				if(text.startsWith(word, at)) {
+					at += word.length();
+					return word.equals("null") ? null : Boolean.valueOf(word);
+				}
+			}
+			int start = at;
+			while(at < text.length() && "+-.eE0123456789".indexOf(text.charAt(at)) >= 0) {
+				at++;
+			}
+			try {
+				return Double.valueOf(text.substring(start, at));
+			} catch(NumberFormatException e) {
+				throw error("a value is expected");
+			}
+		}
+
+		private String string() {
+			StringBuilder result = new StringBuilder();
+			at++;
+			while(at < text.length()) {
+				char c = text.charAt(at++);
+				if(c == '"') {
+					return result.toString();
+				}
+				if(c != '\\') {
+					result.append(c);
+					continue;
+				}
+				if(at == text.length()) {
+					break;
+				}
+				c = text.charAt(at++);
+				switch(c) {
+				case 'b': result.append('\b'); break;
+				case 'f': result.append('\f'); break;
+				case 'n': result.append('\n'); break;
+				case 'r': result.append('\r'); break;
+				case 't': result.append('\t'); break;
+				case 'u':
+					if(at + 4 > text.length()) {
+						throw error("invalid escape");
+					}
+					try {
+						result.append((char) Integer.parseInt(text.substring(at, at + 4), 16));
+					} catch(NumberFormatException e) {
+						throw error("invalid escape");
+					}
+					at += 4;
+					break;
+				default: result.append(c);
+				}
+			}
+			throw error("a string is not closed");
+		}
+
+		/**
+		 * @return true if a comma follows, false if close follows
+		 */
+		private boolean separator(char close) {
+			char c = next();
+			at++;
+			if(c == ',') {
+				return true;
+			}
+			if(c == close) {
+				return false;
+			}
+			throw error("',' or '" + close + "' is expected");
+		}
+
+		private void expect(char c) {
+			if(next() != c) {
+				throw error("'" + c + "' is expected");
+			}
+			at++;
+		}
+
+		/**
+		 * @return the next character that is not a space, 0 at the end of the line
+		 */
+		private char next() {
+			skipSpaces();
+			return at < text.length() ? text.charAt(at) : 0;
+		}
+
+		private void skipSpaces() {
+			while(at < text.length() && Character.isWhitespace(text.charAt(at))) {
+				at++;
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException("invalid JSON at column " + (at + 1) + ", " + message);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package cli;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * hand out the threads that crop images by the size of the crops, so a few huge crops do
+ * not hold up many small ones.<br>
+ * every crop is put in the lane of its size class, by the pixels of its full size (see
+ * {@link util.PerspectiveTransform#maximizeSquareTranslation(int[][])}), and waits there in the
+ * order it came. a free thread takes the crop that is first by its arrival time plus the
+ * delay of its class, so a small crop goes before a large one that came a little earlier
+ * but a large crop that waited longer then its delay goes before the small ones that came
+ * after it and is never starved.<br>
+ * the crops that are not small take at most all the threads but one, the last is kept for
+ * the small lane so small crops keep running while the others are built.
+ * <pre>
+ * class    pixels          delay
+ * small    up to 1 MP      0
+ * medium   up to 16 MP     0.5 seconds
+ * large    more            5 seconds
+ * </pre>
+ * a crop takes a thread with {@link #acquire(long)} and gives it back with {@link #release(long)}.
+ */
+class CropScheduler {
+
+	/**
+	 * the most pixels of every class but the last
+	 */
+	private static final long[] LIMITS = { 1L << 20, 16L << 20 };
+	/**
+	 * the time a crop of every class waits after a smaller crop that came at the same time, in nanoseconds
+	 */
+	private static final long[] DELAYS = { 0, TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(5) };
+
+	/**
+	 * a crop waiting in a lane.
+	 */
+	private static class Ticket {
+		final long turn;
+		final Condition granted;
+		boolean running;
+
+		Ticket(long turn, Condition granted) {
+			this.turn = turn;
+			this.granted = granted;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ArrayDeque<Ticket>[] lanes;
+	private final int threads;
+	private int free, heavy;
+
+	/**
+	 * @param threads the number of crops that run at once
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	CropScheduler(int threads) {
+		this.threads = threads;
+		this.free = threads;
+		lanes = new ArrayDeque[DELAYS.length];
+		for(int i=0;i<lanes.length;i++) {
+			lanes[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * @return the size class of a crop of this many pixels, 0 for the small crops
+	 */
+	static int sizeClass(long pixels) {
+		int c = 0;
+		while(c < LIMITS.length && pixels > LIMITS[c]) {
+			c++;
+		}
+		return c;
+	}
+
+	/**
+	 * wait for the turn of a crop and take a thread.
+	 * @param pixels the full size of the crop, see {@link CropJob#pixels}
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	void acquire(long pixels) throws InterruptedException {
+		int lane = sizeClass(pixels);
+		lock.lock();
+		try {
+			Ticket ticket = new Ticket(System.nanoTime() + DELAYS[lane], lock.newCondition());
+			lanes[lane].add(ticket);
+			dispatch();
+			while(!ticket.running) {
+				try {
+					ticket.granted.await();
+				} catch(InterruptedException e) {
+					if(ticket.running) {
+						// the turn came with the interrupt, give it to the next crop
+						give(lane);
+					} else {
+						lanes[lane].remove(ticket);
+					}
+					throw e;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * give back the thread taken by {@link #acquire(long)}.
+	 */
+	void release(long pixels) {
+		lock.lock();
+		try {
+			give(sizeClass(pixels));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void give(int lane) {
+		free++;
+		if(lane > 0) {
+			heavy--;
+		}
+		dispatch();
+	}
+
+	/**
+	 * start the first waiting crops while there are free threads.
+	 */
+	private void dispatch() {
+		while(free > 0) {
+			int best = -1;
+			for(int i=0;i<lanes.length;i++) {
+				Ticket head = lanes[i].peek();
+				if(head == null || (i > 0 && threads > 1 && heavy >= threads - 1)) {
+					continue;
+				}
+				// the turns are compared by their difference, nanoTime may overflow
+				if(best < 0 || head.turn - lanes[best].peek().turn < 0) {
+					best = i;
+				}
+			}
+			if(best < 0) {
+				return;
+			}
+			Ticket ticket = lanes[best].poll();
+			ticket.running = true;
+			free--;
+			if(best > 0) {
+				heavy++;
+			}
+			ticket.granted.signal();
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package cli;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import util.ImageEncoder;
+import util.Interpolation;
+
+/**
+ * crop images sent over HTTP.
+ * <pre>
+ * POST /crop?coords=(3,3),(16,56),(73,55),(62,14)&amp;format=png
+ * body      the encoded input image
+ * response  200 the encoded cropped image, sent while it is encoded, with
+ *               Content-Type image/png or image/jpeg and X-Crop-Width, X-Crop-Height
+ *           400 a text message when the coordinates, the format or the image are not valid
+ *           411 when the request has no Content-Length, a chunked upload
+ *           413 when the image or its crop needs more then its whole memory budget
+ *           405 for any method but POST, 404 for any other path
+ * </pre>
+ * every request is served on its own thread, a virtual thread when the JVM has them
+ * (java 21 or newer) so a request that waits to be read, to be cropped or for its client
+ * to take the response holds no platform thread, otherwise a thread of a cached pool. the
+ * crops of all the requests are limited to the number of threads at once, small crops
+ * first (see {@link CropScheduler}), and to the memory budget, see {@link MemoryBudget},
+ * the other requests wait their turn.<br>
+ * a quarter of the memory budget is for the uploaded images, an upload waits for its
+ * Content-Length there before its body is read and keeps it until its crop is sent, so
+ * the requests that wait hold no more then the quarter. the rest is for decoding, building
+ * and encoding the crops. the two are separate so uploads waiting for the rest never hold
+ * all the memory the running crops need.
+ */
+class CropServer {
+
+	private final Interpolation interpolation;
+	private final int maxDim;
+	private final boolean subsample;
+	private final ImageEncoder encoder;
+	private final String format;
+	private final CropScheduler crops;
+	private final MemoryBudget uploads, budget;
+	private final AtomicInteger requests = new AtomicInteger();
+
+	/**
+	 * @param interpolation the way every image is sampled
+	 * @param maxDim shrink the cropped images so their longer side is at most this, 0 to keep their size
+	 * @param subsample decode only every n-th pixel of images much larger then their crop
+	 * @param encoder settings of the sent images, not changed while the server runs
+	 * @param format the format of a request that does not set one
+	 * @param threads number of images cropped at once, each on one thread
+	 * @param memory the number of bytes the uploads and the images cropped at once may take
+	 */
+	CropServer(Interpolation interpolation, int maxDim, boolean subsample, ImageEncoder encoder, String format, int threads,
+			long memory) {
+		this.interpolation = interpolation;
+		this.maxDim = maxDim;
+		this.subsample = subsample;
+		this.encoder = encoder;
+		this.format = format;
+		this.crops = new CropScheduler(threads);
+		this.uploads = new MemoryBudget(memory / 4);
+		this.budget = new MemoryBudget(memory - memory / 4);
+	}
+
+	/**
+	 * start serving on address, the server runs on its own threads until the process ends.
+	 * @param address the address and port to listen on
+	 * @return the server
+	 * @throws IOException if the address cannot be bound
+	 */
+	HttpServer start(InetSocketAddress address) throws IOException {
+		HttpServer server = HttpServer.create(address, 1024);
+		server.createContext("/crop", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					crop(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(requestExecutor());
+		server.start();
+		return server;
+	}
+
+	/**
+	 * @return an executor that starts a virtual thread for every request, or a cached pool
+	 * 			before java 21
+	 */
+	static ExecutorService requestExecutor() {
+		try {
+			// called by name so the code still compiles and runs on older JVMs
+			Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtual.invoke(null);
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "crop-request");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	private void crop(HttpExchange exchange) throws IOException {
+		if(!exchange.getRequestURI().getPath().equals("/crop")) {
+			send(exchange, 404, "not found");
+			return;
+		}
+		if(!exchange.getRequestMethod().equals("POST")) {
+			exchange.getResponseHeaders().set("Allow", "POST");
+			send(exchange, 405, "use POST");
+			return;
+		}
+
+		CropJob job;
+		long length;
+		try {
+			Map<String, String> query = query(exchange.getRequestURI());
+			String f = query.getOrDefault("format", format).toLowerCase();
+			if(!f.equals("png") && !f.equals("jpg")) {
+				throw new IllegalArgumentException("output format is not recoginzed, sould be png or jpg.");
+			}
+			job = new CropJob(requests.incrementAndGet(), null, CropJob.parseCoords(query.get("coords")), null, f);
+			String header = exchange.getRequestHeaders().getFirst("Content-Length");
+			if(header == null) {
+				// the memory of the upload is taken before it is read, a chunked body does not tell it
+				send(exchange, 411, "the image length is required, chunked uploads are not accepted");
+				return;
+			}
+			length = Long.parseLong(header.trim());
+		} catch(IllegalArgumentException e) {
+			send(exchange, 400, e.getMessage());
+			return;
+		}
+		if(length <= 0) {
+			send(exchange, 400, "input image is missing");
+			return;
+		}
+		if(length > Math.min(uploads.getCapacity(), Integer.MAX_VALUE - 8)) {
+			send(exchange, 413, "the image is larger then the upload budget of " 
+					+ MemoryBudget.megabytes(uploads.getCapacity()) + " MB");
+			return;
+		}
+
+		try {
+			uploads.acquire(length);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			send(exchange, 503, "the server is stopping");
+			return;
+		}
+		try {
+			try(InputStream body = exchange.getRequestBody()) {
+				job.data = body.readNBytes((int) length);
+			}
+			if(job.data.length < length) {
+				send(exchange, 400, "the image is shorter then its Content-Length");
+				return;
+			}
+			crop(exchange, job);
+		} finally {
+			uploads.release(length);
+		}
+	}
+
+	/**
+	 * crop an uploaded image and send it.
+	 */
+	private void crop(HttpExchange exchange, CropJob job) throws IOException {
+		// the upload is already counted, the rest of the crop is counted in the budget
+		long work;
+		try {
+			job.plan(maxDim, subsample);
+			work = job.bytes - job.data.length;
+		} catch(IOException | IllegalArgumentException e) {
+			send(exchange, 400, e.getMessage() != null ? e.getMessage() : e.toString());
+			return;
+		}
+
+		try {
+			budget.check(work);
+		} catch(IllegalArgumentException e) {
+			send(exchange, 413, e.getMessage());
+			return;
+		}
+		try {
+			crops.acquire(job.pixels);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			send(exchange, 503, "the server is stopping");
+			return;
+		}
+		try {
+			budget.acquire(work);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			crops.release(job.pixels);
+			send(exchange, 503, "the server is stopping");
+			return;
+		}
+		try {
+			try {
+				job.decode(interpolation, maxDim, subsample);
+				job.warp();
+			} catch(IOException | IllegalArgumentException e) {
+				send(exchange, 400, e.getMessage() != null ? e.getMessage() : e.toString());
+				return;
+			} catch(RuntimeException | OutOfMemoryError e) {
+				send(exchange, 500, e.toString());
+				return;
+			}
+
+			// the response is sent in chunks while the image is encoded
+			exchange.getResponseHeaders().set("Content-Type", job.format.equals("png") ? "image/png" : "image/jpeg");
+			exchange.getResponseHeaders().set("X-Crop-Width", Integer.toString(job.width));
+			exchange.getResponseHeaders().set("X-Crop-Height", Integer.toString(job.height));
+			exchange.sendResponseHeaders(200, 0);
+			try(OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 1 << 16)) {
+				job.encode(encoder, out);
+			}
+		} finally {
+			budget.release(work);
+			crops.release(job.pixels);
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * @return the decoded parameters of the query of uri
+	 */
+	private static Map<String, String> query(URI uri) {
+		Map<String, String> parameters = new HashMap<>();
+		String query = uri.getRawQuery();
+		if(query == null) {
+			return parameters;
+		}
+		for(String pair : query.split("&")) {
+			int at = pair.indexOf('=');
+			String name = at < 0 ? pair : pair.substring(0, at), value = at < 0 ? "" : pair.substring(at + 1);
+			parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return parameters;
+	}
+}
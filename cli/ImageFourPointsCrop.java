@@ -1,12 +1,22 @@
 package cli;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
-import javax.imageio.ImageIO;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -15,6 +25,14 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import util.PerspectiveTransform;
+import util.ImageEncoder;
+import util.ImagePyramid;
+import util.Interpolation;
+import util.PngWriter;
+import util.RegionDecoder;
+import util.RemapTable;
+import util.StreamingWarp;
+import util.WarpOptions;
 
 /**
  * command line tool for cropping an image using four points, adjust the view perspective
@@ -34,12 +52,68 @@ import util.PerspectiveTransform;
  *                                                 example: [(3,3),(16,56),(73,55),(62,14)]
  *                                                 note: if list contain spaces it should be
  *                                                 encapsulated with parentheses
+ *     --daemon <socket>                           keep running and crop the images other programs send
+ *                                                 to a unix domain socket at this path, the other
+ *                                                 options apply to every image and the threads count
+ *                                                 is the number of images cropped at once
  *  -f,--output-format <format=png>                choose output format jpg or png(default)
+ *     --fast                                      encode as fast as possible, the file is larger, png
+ *                                                 level 1 with the up filter and a baseline jpg, other
+ *                                                 encoding options override it
  *  -g,--gui                                       shows a graphical interface that the user can
  *                                                 interact with
  *  -h,--help                                      print this message
+ *     --http <[host:]port>                        keep running and crop the images posted to
+ *                                                 http://host:port/crop?coords=..., the image is the
+ *                                                 request body and the cropped image is the response,
+ *                                                 a port alone listens on localhost, the other options
+ *                                                 apply to every image and the threads count is the
+ *                                                 number of images cropped at once
  *  -i,--image <file>                              input image path
+ *     --interpolation <name>                      the way the image is sampled between its pixels,
+ *                                                 nearest, bilinear, bilinear-fixed, bicubic or
+ *                                                 lanczos3, default is bilinear
+ *     --io-threads <count>                        number of threads that decode and number of threads
+ *                                                 that encode in batch mode while the cropped images
+ *                                                 are built by the threads count, default is 2
+ *     --jpeg-chroma <subsampling>                 jpg chroma subsampling, 444 keeps the full color,
+ *                                                 422 halves its width and 420 its width and height,
+ *                                                 default is 420
+ *     --jpeg-optimize                             build jpg huffman tables for the image, a little
+ *                                                 smaller and slower
+ *     --jpeg-progressive                          save a progressive jpg that is shown coarse first
+ *                                                 while it loads
+ *     --jpeg-quality <percent>                    jpg quality from 0(smallest) to 100(best), default
+ *                                                 is 75
+ *     --max-dim <pixels>                          shrink the cropped image so its longer side is at
+ *                                                 most this number of pixels
+ *     --memory-budget <MB>                        megabytes the images cropped at once in batch,
+ *                                                 daemon and http modes may take together, estimated
+ *                                                 from their headers before decoding, an image waits
+ *                                                 until its memory is free and one larger then the
+ *                                                 budget fails, daemon and http modes keep a quarter
+ *                                                 of it for the images sent to them, default is 3/4 of
+ *                                                 the java heap
  *  -o,--output-image <file>                       output image path
+ *     --png-filter <name>                         the way png rows are filtered before they are
+ *                                                 compressed, none, sub, up, average, paeth or
+ *                                                 adaptive, default is adaptive
+ *     --png-level <level>                         png compression level from 0(fastest) to
+ *                                                 9(smallest), default is 4
+ *     --remap <file>                              keep the source position of every cropped pixel in
+ *                                                 this file and reuse it, for cropping the same area
+ *                                                 of many images of the same size, the file is made
+ *                                                 when it does not exist or was made for other
+ *                                                 coordinates, bilinear only
+ *     --stream <megapixels>                       decode the input image in bands of at most this
+ *                                                 number of megapixels instead of all at once, for
+ *                                                 images larger then the memory, png output only, the
+ *                                                 cropped image is encoded while it is built
+ *     --subsample                                 when the cropped image is much smaller then the area
+ *                                                 it is taken from, decode only every n-th pixel of
+ *                                                 the input image, faster but fine patterns may alias
+ *  -t,--threads <count>                           number of threads used to build the cropped image,
+ *                                                 default is the number of processors
  * 
  */
 public class ImageFourPointsCrop {
@@ -92,6 +166,162 @@ public class ImageFourPointsCrop {
 		                .desc("shows a graphical interface that the user can interact with")
 		                .hasArg(false)
 		                .build();
+		Option threadsOption = 
+				Option.builder("t")
+						.longOpt("threads")
+		                .desc("number of threads used to build the cropped image, default is the number of processors")
+		                .hasArg()
+		                .argName("count")
+		                .build();
+		Option interpolationOption = 
+				Option.builder()
+						.longOpt("interpolation")
+		                .desc("the way the image is sampled between its pixels, nearest, bilinear, bilinear-fixed, bicubic or lanczos3, default is bilinear")
+		                .hasArg()
+		                .argName("name")
+		                .build();
+
+		Option maxDimOption = 
+				Option.builder()
+						.longOpt("max-dim")
+		                .desc("shrink the cropped image so its longer side is at most this number of pixels")
+		                .hasArg()
+		                .argName("pixels")
+		                .build();
+
+		Option subsampleOption = 
+				Option.builder()
+						.longOpt("subsample")
+		                .desc("when the cropped image is much smaller then the area it is taken from, decode only every n-th pixel "
+		                		+ "of the input image, faster but fine patterns may alias")
+		                .hasArg(false)
+		                .build();
+
+		Option streamOption = 
+				Option.builder()
+						.longOpt("stream")
+		                .desc("decode the input image in bands of at most this number of megapixels instead of all at once, "
+		                		+ "for images larger then the memory, png output only, the cropped image is encoded while it is built")
+		                .hasArg()
+		                .argName("megapixels")
+		                .build();
+
+		Option pngLevelOption = 
+				Option.builder()
+						.longOpt("png-level")
+		                .desc("png compression level from 0(fastest) to 9(smallest), default is 4")
+		                .hasArg()
+		                .argName("level")
+		                .build();
+
+		Option pngFilterOption = 
+				Option.builder()
+						.longOpt("png-filter")
+		                .desc("the way png rows are filtered before they are compressed, none, sub, up, average, paeth "
+		                		+ "or adaptive, default is adaptive")
+		                .hasArg()
+		                .argName("name")
+		                .build();
+
+		Option jpegQualityOption = 
+				Option.builder()
+						.longOpt("jpeg-quality")
+		                .desc("jpg quality from 0(smallest) to 100(best), default is 75")
+		                .hasArg()
+		                .argName("percent")
+		                .build();
+
+		Option jpegChromaOption = 
+				Option.builder()
+						.longOpt("jpeg-chroma")
+		                .desc("jpg chroma subsampling, 444 keeps the full color, 422 halves its width and 420 its width "
+		                		+ "and height, default is 420")
+		                .hasArg()
+		                .argName("subsampling")
+		                .build();
+
+		Option jpegOptimizeOption = 
+				Option.builder()
+						.longOpt("jpeg-optimize")
+		                .desc("build jpg huffman tables for the image, a little smaller and slower")
+		                .hasArg(false)
+		                .build();
+
+		Option jpegProgressiveOption = 
+				Option.builder()
+						.longOpt("jpeg-progressive")
+		                .desc("save a progressive jpg that is shown coarse first while it loads")
+		                .hasArg(false)
+		                .build();
+
+		Option fastOption = 
+				Option.builder()
+						.longOpt("fast")
+		                .desc("encode as fast as possible, the file is larger, png level 1 with the up filter and a "
+		                		+ "baseline jpg, other encoding options override it")
+		                .hasArg(false)
+		                .build();
+
+		Option remapOption = 
+				Option.builder()
+						.longOpt("remap")
+		                .desc("keep the source position of every cropped pixel in this file and reuse it, for cropping the "
+		                		+ "same area of many images of the same size, the file is made when it does not exist or was "
+		                		+ "made for other coordinates, bilinear only")
+		                .hasArg()
+		                .argName("file")
+		                .build();
+
+		Option batchOption = 
+				Option.builder()
+						.longOpt("batch")
+		                .desc("crop every image of a manifest file, a line of input,coords,output,format in CSV or a JSON "
+		                		+ "object with these names, output and format may be left out, the other options apply to "
+		                		+ "every image and a failed image does not stop the others")
+		                .hasArg()
+		                .argName("manifest")
+		                .build();
+
+		Option ioThreadsOption = 
+				Option.builder()
+						.longOpt("io-threads")
+		                .desc("number of threads that decode and number of threads that encode in batch mode while the "
+		                		+ "cropped images are built by the threads count, default is 2")
+		                .hasArg()
+		                .argName("count")
+		                .build();
+
+		Option memoryBudgetOption = 
+				Option.builder()
+						.longOpt("memory-budget")
+		                .desc("megabytes the images cropped at once in batch, daemon and http modes may take together, "
+		                		+ "estimated from their headers before decoding, an image waits until its memory is "
+		                		+ "free and one larger then the budget fails, daemon and http modes keep a quarter of it for the "
+		                		+ "images sent to them, default is 3/4 of the java heap")
+		                .hasArg()
+		                .argName("MB")
+		                .build();
+
+		Option daemonOption = 
+				Option.builder()
+						.longOpt("daemon")
+		                .desc("keep running and crop the images other programs send to a unix domain socket at this path, "
+		                		+ "the other options apply to every image and the threads count is the number of images "
+		                		+ "cropped at once")
+		                .hasArg()
+		                .argName("socket")
+		                .build();
+
+		Option httpOption = 
+				Option.builder()
+						.longOpt("http")
+		                .desc("keep running and crop the images posted to http://host:port/crop?coords=..., the image "
+		                		+ "is the request body and the cropped image is the response, a port alone listens on "
+		                		+ "localhost, the other options apply to every image and the threads count is the number "
+		                		+ "of images cropped at once")
+		                .hasArg()
+		                .argName("[host:]port")
+		                .build();
 
 		Options options = new Options();
 		options.addOption(coordsOption);
@@ -100,6 +330,24 @@ public class ImageFourPointsCrop {
 		options.addOption(imageOutputFormatOption);
 		options.addOption(helpOption);
 		options.addOption(guiOption);
+		options.addOption(threadsOption);
+		options.addOption(interpolationOption);
+		options.addOption(maxDimOption);
+		options.addOption(subsampleOption);
+		options.addOption(streamOption);
+		options.addOption(pngLevelOption);
+		options.addOption(pngFilterOption);
+		options.addOption(jpegQualityOption);
+		options.addOption(jpegChromaOption);
+		options.addOption(jpegOptimizeOption);
+		options.addOption(jpegProgressiveOption);
+		options.addOption(fastOption);
+		options.addOption(remapOption);
+		options.addOption(batchOption);
+		options.addOption(ioThreadsOption);
+		options.addOption(memoryBudgetOption);
+		options.addOption(daemonOption);
+		options.addOption(httpOption);
 		
 		// parse
 		File imgFile = null;
@@ -107,6 +355,18 @@ public class ImageFourPointsCrop {
 		File output = null;
 		String output_format = "png";
 		boolean show_gui = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		Interpolation interpolation = Interpolation.BILINEAR;
+		int max_dim = 0;
+		boolean subsample = false;
+		long stream_pixels = 0;
+		File remap_file = null;
+		File batch_file = null;
+		int io_threads = 2;
+		long memory_budget = MemoryBudget.defaultCapacity();
+		Path daemon_socket = null;
+		InetSocketAddress http_address = null;
+		ImageEncoder encoder = new ImageEncoder();
 		
 	    CommandLineParser parser = new DefaultParser();
 	    try {
@@ -140,6 +400,175 @@ public class ImageFourPointsCrop {
 		    	    System.exit(0);
 	        	}
 	        }
+	        // threads
+	        if(line.hasOption("threads")) {
+	        	try {
+	        		threads = Integer.parseInt(line.getOptionValue("threads"));
+	        	} catch(NumberFormatException e) {
+	        		threads = 0;
+	        	}
+	        	if(threads < 1) {
+	        		System.err.println("error: threads count should be a positive number.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        // interpolation
+	        if(line.hasOption("interpolation")) {
+	        	try {
+	        		interpolation = Interpolation.forName(line.getOptionValue("interpolation"));
+	        	} catch(IllegalArgumentException e) {
+	        		System.err.println("error: interpolation is not recoginzed, sould be nearest, bilinear, bilinear-fixed, bicubic or lanczos3.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        // max dimension
+	        if(line.hasOption("max-dim")) {
+	        	try {
+	        		max_dim = Integer.parseInt(line.getOptionValue("max-dim"));
+	        	} catch(NumberFormatException e) {
+	        		max_dim = 0;
+	        	}
+	        	if(max_dim < 1) {
+	        		System.err.println("error: max dimension should be a positive number.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        // subsample
+	        if(line.hasOption("subsample")) {
+	        	subsample = true;
+	        }
+	        // stream
+	        if(line.hasOption("stream")) {
+	        	try {
+	        		stream_pixels = Long.parseLong(line.getOptionValue("stream")) * 1000000;
+	        	} catch(NumberFormatException e) {
+	        		stream_pixels = 0;
+	        	}
+	        	if(stream_pixels < 1) {
+	        		System.err.println("error: stream megapixels should be a positive number.");
+		    	    System.exit(0);
+	        	}
+	        	if(max_dim > 0) {
+	        		System.err.println("error: stream cannot be used with max-dim.");
+		    	    System.exit(0);
+	        	}
+	        	if(output_format.equals("jpg")) {
+	        		// the jpg writer takes the whole cropped image, it would grow with the output
+	        		System.err.println("error: stream cannot be used with jpg output.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        // remap table
+	        if(line.hasOption("remap")) {
+	        	remap_file = new File(line.getOptionValue("remap"));
+	        	if(stream_pixels > 0 || max_dim > 0 || interpolation != Interpolation.BILINEAR) {
+	        		System.err.println("error: remap cannot be used with stream, max-dim or an interpolation other then bilinear.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        // batch
+	        if(line.hasOption("batch")) {
+	        	if(!(batch_file=new File(line.getOptionValue("batch"))).exists()) {
+		        	System.err.println("error: manifest file dose not exist");
+		    	    System.exit(0);
+	        	}
+	        	if(show_gui || stream_pixels > 0 || remap_file != null || line.hasOption("image") || line.hasOption("coords") 
+	        			|| line.hasOption("output-image")) {
+	        		System.err.println("error: batch cannot be used with gui, stream, remap, image, coords or output-image.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        // daemon
+	        if(line.hasOption("daemon")) {
+	        	daemon_socket = Paths.get(line.getOptionValue("daemon"));
+	        	if(show_gui || batch_file != null || stream_pixels > 0 || remap_file != null || line.hasOption("image") 
+	        			|| line.hasOption("coords") || line.hasOption("output-image")) {
+	        		System.err.println("error: daemon cannot be used with gui, batch, stream, remap, image, coords or output-image.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        // http
+	        if(line.hasOption("http")) {
+	        	String address = line.getOptionValue("http");
+	        	int colon = address.lastIndexOf(':');
+	        	try {
+	        		int port = Integer.parseInt(address.substring(colon + 1));
+	        		http_address = colon < 0 ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port) 
+	        				: new InetSocketAddress(address.substring(0, colon), port);
+	        	} catch(IllegalArgumentException e) {
+	        		System.err.println("error: http address should be a port or host:port.");
+		    	    System.exit(0);
+	        	}
+	        	if(show_gui || batch_file != null || daemon_socket != null || stream_pixels > 0 || remap_file != null 
+	        			|| line.hasOption("image") || line.hasOption("coords") || line.hasOption("output-image")) {
+	        		System.err.println("error: http cannot be used with gui, batch, daemon, stream, remap, image, coords or output-image.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        if(line.hasOption("io-threads")) {
+	        	try {
+	        		io_threads = Integer.parseInt(line.getOptionValue("io-threads"));
+	        	} catch(NumberFormatException e) {
+	        		io_threads = 0;
+	        	}
+	        	if(io_threads < 1) {
+	        		System.err.println("error: io threads count should be a positive number.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        if(line.hasOption("memory-budget")) {
+	        	try {
+	        		memory_budget = Long.parseLong(line.getOptionValue("memory-budget")) << 20;
+	        	} catch(NumberFormatException e) {
+	        		memory_budget = 0;
+	        	}
+	        	if(memory_budget < 1) {
+	        		System.err.println("error: memory budget should be a positive number of megabytes.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        // encoding, the preset first so the other options override it
+	        if(line.hasOption("fast")) {
+	        	encoder = ImageEncoder.fastest();
+	        }
+	        if(line.hasOption("png-level")) {
+	        	try {
+	        		encoder.setPngLevel(Integer.parseInt(line.getOptionValue("png-level")));
+	        	} catch(IllegalArgumentException e) {
+	        		System.err.println("error: png level should be a number from 0 to 9.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        if(line.hasOption("png-filter")) {
+	        	try {
+	        		encoder.setPngFilter(PngWriter.Filter.valueOf(line.getOptionValue("png-filter").toUpperCase()));
+	        	} catch(IllegalArgumentException e) {
+	        		System.err.println("error: png filter is not recoginzed, sould be none, sub, up, average, paeth or adaptive.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        if(line.hasOption("jpeg-quality")) {
+	        	try {
+	        		encoder.setJpegQuality(Integer.parseInt(line.getOptionValue("jpeg-quality")) / 100f);
+	        	} catch(IllegalArgumentException e) {
+	        		System.err.println("error: jpeg quality should be a number from 0 to 100.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        if(line.hasOption("jpeg-chroma")) {
+	        	try {
+	        		encoder.setChroma(ImageEncoder.Chroma.forName(line.getOptionValue("jpeg-chroma")));
+	        	} catch(IllegalArgumentException e) {
+	        		System.err.println("error: jpeg chroma subsampling is not recoginzed, sould be 444, 422 or 420.");
+		    	    System.exit(0);
+	        	}
+	        }
+	        if(line.hasOption("jpeg-optimize")) {
+	        	encoder.setOptimizeHuffman(true);
+	        }
+	        if(line.hasOption("jpeg-progressive")) {
+	        	encoder.setProgressive(true);
+	        }
 	        // image file
 	        if(line.hasOption("image")) {
 		        if(!(imgFile=new File(line.getOptionValue("image"))).exists()) {
@@ -147,32 +576,21 @@ public class ImageFourPointsCrop {
 		    	    System.exit(0);
 		        }
 	        } else {
-	        	if(!show_gui) {
+	        	if(!show_gui && batch_file == null && daemon_socket == null && http_address == null) {
 	        		System.err.println("error: input image file is missing");
 	        		System.exit(0);
 	        	}
 	        }
 	        // coordinates
 	        if(line.hasOption("coords")) {
-		        String coords = line.getOptionValue("coords");
-		        Matcher m1 = Pattern.compile("\\((\\d+,[ ]*\\d+)\\)").matcher(coords);
-				ArrayList<int[]> temp = new ArrayList<>();
-				while(m1.find()) {
-					Matcher m2 = Pattern.compile("\\d+").matcher(m1.group(1));
-					int x, y;
-					m2.find();
-					x = Integer.parseInt(m2.group(0));
-					m2.find();
-					y = Integer.parseInt(m2.group(0));
-					temp.add(new int[]{ x, y });
-				}
-				if(temp.size() != 4) {
-					System.err.println("error: coordinates are missing, 4 points are required.");
+	        	try {
+	        		rectangle = CropJob.parseCoords(line.getOptionValue("coords"));
+	        	} catch(IllegalArgumentException e) {
+					System.err.println("error: " + e.getMessage());
 					System.exit(0);
-				}
-				rectangle = temp.toArray(new int[4][2]);
+	        	}
 	        } else {
-	        	if(!show_gui) {
+	        	if(!show_gui && batch_file == null && daemon_socket == null && http_address == null) {
 		        	System.err.println("error: coordinates are missing");
 		    	    System.exit(0);
 	        	}
@@ -189,61 +607,180 @@ public class ImageFourPointsCrop {
 	    	ui.Frame.showWindow(imgFile, rectangle, null);
 	    	return;
 	    }
+	    
+	    // Daemon
+	    
+	    if(daemon_socket != null) {
+	    	try {
+	    		new CropDaemon(interpolation, max_dim, subsample, encoder, output_format, threads, 
+	    				memory_budget).serve(daemon_socket);
+	    	} catch(IOException e) {
+	        	System.err.println("error: " + e.getMessage());
+	    	}
+	    	return;
+	    }
+	    
+	    // HTTP
+	    
+	    if(http_address != null) {
+	    	try {
+	    		new CropServer(interpolation, max_dim, subsample, encoder, output_format, threads, 
+	    				memory_budget).start(http_address);
+	    		System.out.println("Listening on http://" + http_address.getHostString() + ":" + http_address.getPort() + "/crop");
+	    	} catch(IOException e) {
+	        	System.err.println("error: " + e.getMessage());
+	    	}
+	    	return;
+	    }
+	    
+	    // Batch
+	    
+	    if(batch_file != null) {
+	    	BatchPipeline batch = new BatchPipeline(interpolation, max_dim, subsample, encoder, output_format, 
+	    			io_threads, threads, io_threads, new MemoryBudget(memory_budget));
+	    	try(BufferedReader manifest = new BufferedReader(new InputStreamReader(new FileInputStream(batch_file), 
+	    			StandardCharsets.UTF_8))) {
+	    		batch.run(manifest, batch_file.getAbsoluteFile().getParentFile());
+	    	} catch(IOException | InterruptedException e) {
+	        	System.err.println("error: failed to read the manifest, " + e.getMessage());
+	    	}
+	    	System.out.println("Saved " + batch.getSaved() + " images, " + batch.getFailed() + " failed");
+	    	return;
+	    }
 		
 		// Prepare Data
 
-		// get the original image
-		BufferedImage image = null;
-		try {
-			image = ImageIO.read(imgFile);
-		} catch(IOException e) {
-        	System.err.println("error: invalid input image");
-    	    System.exit(0);
-		}
-
 		// arrange points to left-top right-top right-bottom left-bottom 
 		PerspectiveTransform.arrange4PointsClockwise(rectangle);
-		
+
 		// calculate size for cropped image
 		int[][] max = PerspectiveTransform.maximizeSquareTranslation(rectangle);
-		int width = max[2][0], height = max[2][1];
+		int[][] fit = max_dim > 0 ? PerspectiveTransform.fitSquareTranslation(max, max_dim) : max;
+		int width = fit[2][0], height = fit[2][1];
+		
+		WarpOptions warpOptions = new WarpOptions().setParallelism(threads).setInterpolation(interpolation);
 		
 		// find perspective transform matrix
-		double[][] mmt = PerspectiveTransform.matrix(rectangle, max);
+		double[][] mmt = PerspectiveTransform.matrix(rectangle, fit);
 		
-		// Construct Cropped Image
-        
-		System.out.print("Building...");
+		// get the part of the original image the points cover, streaming decodes it later in bands
+		BufferedImage image = null;
+		if(stream_pixels == 0) {
+			Rectangle region = null;
+			int subsampling = subsample ? RegionDecoder.subsampling(max, fit) : 1;
+			try(RegionDecoder decoder = new RegionDecoder(imgFile)) {
+				region = decoder.bounds(rectangle, RegionDecoder.MARGIN * subsampling);
+				image = decoder.read(region, subsampling);
+			} catch(IOException e) {
+	        	System.err.println("error: invalid input image");
+	    	    System.exit(0);
+			}
+			
+			if(fit != max) {
+				// shrunk, sample from the image pyramid so no source pixel is skipped
+				warpOptions.setPyramid(new ImagePyramid(image));
+			}
+			
+			mmt = PerspectiveTransform.offsetSource(mmt, region.x, region.y);
+			mmt = PerspectiveTransform.scaleSource(mmt, 1.0 / subsampling);
+		}
 		
-        // build cropped image
-		BufferedImage cropped = null;
-		if(output_format.equals("png")) {
-			cropped = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		} else if(output_format.equals("jpg")) {
-			cropped = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		// reuse the source positions of a previous crop of the same area
+		RemapTable remap = null;
+		if(remap_file != null) {
+			remap = remapTable(remap_file, mmt, width, height, image);
 		}
-        PerspectiveTransform.writeTransformed(image, width, height, mmt, cropped);
-        
-		System.out.println("done!");
- 
-        // Save As...
+		
+		// Save As...
         
 		if(output == null) {
 			String path = imgFile.getAbsoluteFile().getParent() + "/" + imgFile.getName().replaceAll("\\..+$", "").concat("-4crop" + "." + output_format);
 			output = new File(path);
 		}
+		
+		// Construct Cropped Image
+        
+		System.out.print("Building...");
+		
 		try {
 			if(!output.exists()) {
 				 output.createNewFile();
 			}
-	        ImageIO.write(cropped, output_format, output);
+			boolean deep = image != null && image.getRaster().getDataBuffer() instanceof DataBufferUShort
+					&& warpOptions.getPyramid() == null && interpolation == Interpolation.BILINEAR;
+			if(output_format.equals("png") && deep) {
+				// 16 bits per channel are blended and saved as they are, not streamed through the 8 bit writer
+				BufferedImage cropped = CropJob.deepImage(image, width, height);
+				if(remap != null) {
+					remap.apply(image, cropped, warpOptions);
+				} else {
+					PerspectiveTransform.writeTransformed(image, width, height, mmt, cropped, warpOptions);
+				}
+				encoder.write(cropped, "png", output);
+			} else if(output_format.equals("png")) {
+				// the png is encoded while the rows are built
+				try(PngWriter png = encoder.setThreads(threads).createPngWriter(
+						new BufferedOutputStream(new FileOutputStream(output)), width, height, true)) {
+					if(stream_pixels > 0) {
+						try(RegionDecoder decoder = new RegionDecoder(imgFile)) {
+							new StreamingWarp(decoder, mmt, width, height, warpOptions)
+									.setBandPixels(stream_pixels)
+									.write(png);
+						}
+					} else if(remap != null) {
+						remap.apply(image, png, warpOptions);
+					} else {
+						PerspectiveTransform.writeTransformed(image, width, height, mmt, png, warpOptions);
+					}
+				}
+			} else if(output_format.equals("jpg")) {
+				// a gray scan stays gray, its one channel is blended as it is stored
+				boolean gray = image != null && image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+				BufferedImage cropped = new BufferedImage(width, height, 
+						gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+				if(remap != null) {
+					remap.apply(image, cropped, warpOptions);
+				} else {
+					PerspectiveTransform.writeTransformed(image, width, height, mmt, cropped, warpOptions);
+				}
+				encoder.writeJpeg(cropped, output);
+			}
 		} catch(IOException e) {
         	System.err.println("error: failed to save image, path may be problematic try saving to a different directory " + 
         							"that dose not contains spaces or Unicode Letters in the its path.");
     	    System.exit(0);
 		}
         
+		System.out.println("done!");
+        
         System.out.println("Saved to " + output.getPath());
         
 	}
+	
+	/**
+	 * @return the table saved in file if it was made for the same transform and image size,
+	 * 			otherwise a new table that is saved to file, replacing a table made for another crop
+	 */
+	private static RemapTable remapTable(File file, double[][] mmt, int width, int height, BufferedImage image) {
+		if(file.exists()) {
+			try(InputStream in = new FileInputStream(file)) {
+				RemapTable table = RemapTable.load(in);
+				if(table.matches(mmt, width, height, image.getWidth(), image.getHeight())) {
+					return table;
+				}
+			} catch(IOException e) {
+				// never overwrite a file that is not a table
+	        	System.err.println("error: " + file.getPath() + " is not a remap table.");
+	    	    System.exit(0);
+			}
+		}
+		RemapTable table = new RemapTable(mmt, width, height, image.getWidth(), image.getHeight());
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+			table.save(out);
+		} catch(IOException e) {
+        	System.err.println("error: failed to save the remap table to " + file.getPath());
+    	    System.exit(0);
+		}
+		return table;
+	}
 }
\ No newline at end of file
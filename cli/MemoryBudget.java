@@ -0,0 +1,120 @@
+package cli;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * admit jobs by the memory they need, a semaphore whose permits are bytes.<br>
+ * a job waits until the bytes it asks for are free, the jobs that fit are admitted in any
+ * order so small jobs keep running while a large one waits for the memory of several others,
+ * until the job that waits the longest has waited {@link #AGING}, then no other job is
+ * admitted before it so it is never starved.
+ * a job that needs more then the whole budget is rejected, it could never run.<br>
+ * the jobs wait on a lock, not a monitor, so waiting virtual threads give back their carrier.
+ * <pre>
+ * budget.acquire(job.bytes);
+ * try {
+ *     ... decode, warp and encode ...
+ * } finally {
+ *     budget.release(job.bytes);
+ * }
+ * </pre>
+ */
+class MemoryBudget {
+
+	/**
+	 * the time the longest waiting job lets the jobs that came after it go first
+	 */
+	static final long AGING = TimeUnit.SECONDS.toNanos(2);
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final long capacity;
+	private long free;
+	/**
+	 * the times the waiting jobs came, the longest waiting first
+	 */
+	private final ArrayDeque<long[]> waiting = new ArrayDeque<>();
+
+	/**
+	 * @param capacity the number of bytes the admitted jobs may take together
+	 */
+	MemoryBudget(long capacity) {
+		this.capacity = capacity;
+		this.free = capacity;
+	}
+
+	/**
+	 * @return the number of bytes the admitted jobs may take together
+	 */
+	long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * wait until bytes are free and take them.
+	 * @throws IllegalArgumentException if bytes is more then the whole budget
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	void acquire(long bytes) throws InterruptedException {
+		check(bytes);
+		lock.lock();
+		try {
+			long[] since = { System.nanoTime() };
+			waiting.add(since);
+			try {
+				while(free < bytes || (waiting.peek() != since && System.nanoTime() - waiting.peek()[0] > AGING)) {
+					changed.await();
+				}
+				free -= bytes;
+			} finally {
+				boolean first = waiting.peek() == since;
+				waiting.remove(since);
+				if(first) {
+					// the next job waits the longest now, the jobs it held back may go
+					changed.signalAll();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * reject a job before it waits for anything else.
+	 * @throws IllegalArgumentException if bytes is more then the whole budget
+	 */
+	void check(long bytes) {
+		if(bytes > capacity) {
+			throw new IllegalArgumentException("the image needs about " + megabytes(bytes)
+					+ " MB, more then the memory budget of " + megabytes(capacity) + " MB");
+		}
+	}
+
+	/**
+	 * give back bytes taken by {@link #acquire(long)}.
+	 */
+	void release(long bytes) {
+		lock.lock();
+		try {
+			free += bytes;
+			// any of the waiting jobs may fit now, not only the first
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the default budget, three quarters of the largest heap the JVM may take so
+	 * 			the encoders and the buffers of the connections have the rest
+	 */
+	static long defaultCapacity() {
+		return Runtime.getRuntime().maxMemory() / 4 * 3;
+	}
+
+	static long megabytes(long bytes) {
+		return (bytes + (1 << 20) - 1) >> 20;
+	}
+}
@@ -3,7 +3,7 @@ package ui;
 import java.awt.BorderLayout;
 import java.awt.ComponentOrientation;
 import java.awt.Dimension;
-import java.awt.Graphics;
+import java.awt.GridLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -21,7 +21,10 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.filechooser.*;
 
 import ui.World2D.mousePositionListener;
+import util.ImageEncoder;
 import util.PerspectiveTransform;
+import util.PngWriter;
+import util.WarpOptions;
 
 /**
  * shows an editor for cropping an image using 4 points
@@ -60,6 +63,14 @@ public class Frame extends JFrame {
 	// actions components
 	private JFileChooser imgChooser;
 	private FileNameExtensionFilter imgOpenfilter, imgSavefilter;
+	private JPanel encoding;
+	private JSpinner jpegQuality, pngLevel;
+	private JComboBox<ImageEncoder.Chroma> jpegChroma;
+	private JComboBox<PngWriter.Filter> pngFilter;
+	private JCheckBox jpegOptimize, jpegProgressive;
+	
+	// save settings
+	private ImageEncoder encoder = new ImageEncoder().setThreads(Runtime.getRuntime().availableProcessors());
 	
 	// image file
 	private File image, output;
@@ -106,6 +117,33 @@ public class Frame extends JFrame {
 	            "Just As Image .jpg .png", "jpg", "png");
 	    imgChooser.setMultiSelectionEnabled(false);
 	    imgChooser.setAcceptAllFileFilterUsed(false);
+	    // save encoding settings
+	    encoding = new JPanel(new GridLayout(0, 2, 5, 5));
+	    encoding.setBorder(BorderFactory.createTitledBorder(langStrs.getString("save_encoding_title")));
+	    jpegQuality = new JSpinner(new SpinnerNumberModel(75, 0, 100, 5));
+	    jpegChroma = new JComboBox<>(ImageEncoder.Chroma.values());
+	    jpegOptimize = new JCheckBox(langStrs.getString("save_encoding_jpeg_optimize"));
+	    jpegProgressive = new JCheckBox(langStrs.getString("save_encoding_jpeg_progressive"));
+	    pngLevel = new JSpinner(new SpinnerNumberModel(4, 0, 9, 1));
+	    pngFilter = new JComboBox<>(PngWriter.Filter.values());
+	    JButton fastest = new JButton(langStrs.getString("save_encoding_fastest"));
+	    fastest.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showEncoder(ImageEncoder.fastest());
+			}
+	    });
+	    encoding.add(new JLabel(langStrs.getString("save_encoding_jpeg_quality")));
+	    encoding.add(jpegQuality);
+	    encoding.add(new JLabel(langStrs.getString("save_encoding_jpeg_chroma")));
+	    encoding.add(jpegChroma);
+	    encoding.add(jpegOptimize);
+	    encoding.add(jpegProgressive);
+	    encoding.add(new JLabel(langStrs.getString("save_encoding_png_level")));
+	    encoding.add(pngLevel);
+	    encoding.add(new JLabel(langStrs.getString("save_encoding_png_filter")));
+	    encoding.add(pngFilter);
+	    encoding.add(fastest);
 
 		// create the menu bar
 		menuBar = new JMenuBar();
@@ -436,6 +474,7 @@ public class Frame extends JFrame {
 		if (image == null) {
 			// choose an image file to open
 		    imgChooser.setFileFilter(imgOpenfilter);
+		    imgChooser.setAccessory(null);
 			int returnVal = imgChooser.showOpenDialog(Frame.this);
 			if (returnVal == JFileChooser.APPROVE_OPTION) {
 				image = imgChooser.getSelectedFile();
@@ -483,9 +522,17 @@ public class Frame extends JFrame {
 	public void saveAs() {
 		// choose a path to save at
 	    imgChooser.setFileFilter(imgSavefilter);
+	    imgChooser.setAccessory(encoding);
+	    showEncoder(encoder);
 	    int returnVal = imgChooser.showSaveDialog(Frame.this);
 	    if(returnVal == JFileChooser.APPROVE_OPTION) {
 	 	    output = imgChooser.getSelectedFile();
+	 	    encoder.setJpegQuality((Integer) jpegQuality.getValue() / 100f)
+	 	    		.setChroma((ImageEncoder.Chroma) jpegChroma.getSelectedItem())
+	 	    		.setOptimizeHuffman(jpegOptimize.isSelected())
+	 	    		.setProgressive(jpegProgressive.isSelected())
+	 	    		.setPngLevel((Integer) pngLevel.getValue())
+	 	    		.setPngFilter((PngWriter.Filter) pngFilter.getSelectedItem());
 	    	if(saveCroppedImage()) {
 	    		// update
 		       menuItemSaveFile.setEnabled(true);
@@ -496,6 +543,18 @@ public class Frame extends JFrame {
 	    }
 	}
 	
+	/**
+	 * show encoding settings in the save dialog.
+	 */
+	private void showEncoder(ImageEncoder settings) {
+		jpegQuality.setValue(Math.round(settings.getJpegQuality() * 100));
+		jpegChroma.setSelectedItem(settings.getChroma());
+		jpegOptimize.setSelected(settings.isOptimizeHuffman());
+		jpegProgressive.setSelected(settings.isProgressive());
+		pngLevel.setValue(settings.getPngLevel());
+		pngFilter.setSelectedItem(settings.getPngFilter());
+	}
+	
 	private boolean saveCroppedImage() {
 		try {
 			// create output file if it doesn't exist
@@ -509,16 +568,9 @@ public class Frame extends JFrame {
 			if(format.equals("png") && !output.getAbsolutePath().toLowerCase().endsWith(".png")) {
 				output = new File(output.getParent(), output.getName() + ".png");
 			}
-			// convert ARGB color to RGB for jpg
-			BufferedImage writed = cropped;
-			if(format.equals("jpg")) {
-				writed = new BufferedImage(cropped.getWidth(), cropped.getHeight(), BufferedImage.TYPE_INT_RGB);
-				Graphics g = writed.getGraphics();
-				g.drawImage(cropped, 0, 0, null);
-				g.dispose();
-			}
-			// save image
-	        ImageIO.write(writed, format, output);
+			// save image with the settings of the save dialog, jpg reads
+			// the ARGB pixels as RGB without copying them
+			encoder.write(cropped, format, output);
 		} catch(IOException e) {
 			JOptionPane.showMessageDialog(Frame.this, 
 					langStrs.getString("error_msg_file_could_not_be_saved_desc"),
@@ -581,7 +633,8 @@ public class Frame extends JFrame {
 			
 			// build cropped image
 			cropped = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			PerspectiveTransform.writeTransformed(source, width, height, mmt, cropped);
+			PerspectiveTransform.writeTransformed(source, width, height, mmt, cropped, 
+					new WarpOptions().setParallelism(Runtime.getRuntime().availableProcessors()));
 			
 			// setup cropped image viewer
 			result.setImage(cropped);
@@ -0,0 +1,447 @@
+package util;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+
+/**
+ * settings for saving the cropped image as JPEG or PNG.<br>
+ * JPEG is written by the ImageIO writer with an {@link ImageWriteParam} for the quality,
+ * the optimized Huffman tables and the progressive mode, the chroma subsampling is set on
+ * the image metadata. PNG is written by {@link PngWriter} with its compression level, row
+ * filter and number of threads.<br>
+ * the default settings are the same as {@link ImageIO#write(java.awt.image.RenderedImage, String, File) ImageIO.write},
+ * {@link #fastest()} gives up size for encoding time.
+ * <pre>
+ * example:
+ * new ImageEncoder().setJpegQuality(0.9f).setChroma(ImageEncoder.Chroma.YUV444).write(image, "jpg", file)
+ * </pre>
+ */
+public class ImageEncoder {
+
+	/**
+	 * the size of the color channels of a JPEG image relative to the brightness channel.
+	 * <pre>
+	 * YUV444  full size color, the sharpest colors
+	 * YUV422  half the width
+	 * YUV420  half the width and half the height, the smallest file
+	 * </pre>
+	 */
+	public enum Chroma {
+		YUV444(1, 1), YUV422(2, 1), YUV420(2, 2);
+
+		private final int horizontal, vertical;
+
+		Chroma(int horizontal, int vertical) {
+			this.horizontal = horizontal;
+			this.vertical = vertical;
+		}
+
+		/**
+		 * @param name the name of a subsampling, 444, 422 or 420
+		 * @return the subsampling
+		 * @throws IllegalArgumentException if the name is not recognized
+		 */
+		public static Chroma forName(String name) {
+			for(Chroma chroma : values()) {
+				if(chroma.name().substring(3).equals(name.trim())) {
+					return chroma;
+				}
+			}
+			throw new IllegalArgumentException("unknown chroma subsampling " + name);
+		}
+	}
+
+	private float jpegQuality = 0.75f;
+	private Chroma chroma = Chroma.YUV420;
+	private boolean optimizeHuffman = false;
+	private boolean progressive = false;
+	private int pngLevel = 4;
+	private PngWriter.Filter pngFilter = PngWriter.Filter.ADAPTIVE;
+	private int threads = 1;
+
+	/**
+	 * @return settings that encode as fast as possible, PNG level 1 with the up filter on
+	 * 			every row and baseline JPEG with the default Huffman tables, the files are larger
+	 */
+	public static ImageEncoder fastest() {
+		return new ImageEncoder().setPngLevel(1).setPngFilter(PngWriter.Filter.UP);
+	}
+
+	/**
+	 * @return the JPEG quality from 0 to 1
+	 */
+	public float getJpegQuality() {
+		return jpegQuality;
+	}
+
+	/**
+	 * @param jpegQuality the JPEG quality from 0(smallest) to 1(best), 0.75 by default
+	 * @return this encoder
+	 */
+	public ImageEncoder setJpegQuality(float jpegQuality) {
+		if(!(jpegQuality >= 0 && jpegQuality <= 1)) {
+			throw new IllegalArgumentException("jpeg quality must be between 0 and 1");
+		}
+		this.jpegQuality = jpegQuality;
+		return this;
+	}
+
+	/**
+	 * @return the JPEG chroma subsampling
+	 */
+	public Chroma getChroma() {
+		return chroma;
+	}
+
+	/**
+	 * @param chroma the JPEG chroma subsampling, {@link Chroma#YUV420} by default
+	 * @return this encoder
+	 */
+	public ImageEncoder setChroma(Chroma chroma) {
+		if(chroma == null) {
+			throw new IllegalArgumentException("chroma cannot be null");
+		}
+		this.chroma = chroma;
+		return this;
+	}
+
+	/**
+	 * @return true if the JPEG Huffman tables are built for the image
+	 */
+	public boolean isOptimizeHuffman() {
+		return optimizeHuffman;
+	}
+
+	/**
+	 * @param optimizeHuffman true to build the JPEG Huffman tables for the image, a few percent
+	 * 			smaller and a second pass over the image, false(default) for the standard tables
+	 * @return this encoder
+	 */
+	public ImageEncoder setOptimizeHuffman(boolean optimizeHuffman) {
+		this.optimizeHuffman = optimizeHuffman;
+		return this;
+	}
+
+	/**
+	 * @return true if the JPEG is progressive
+	 */
+	public boolean isProgressive() {
+		return progressive;
+	}
+
+	/**
+	 * @param progressive true for a progressive JPEG that is shown coarse first while it loads,
+	 * 			false(default) for a baseline JPEG
+	 * @return this encoder
+	 */
+	public ImageEncoder setProgressive(boolean progressive) {
+		this.progressive = progressive;
+		return this;
+	}
+
+	/**
+	 * @return the PNG compression level
+	 */
+	public int getPngLevel() {
+		return pngLevel;
+	}
+
+	/**
+	 * @param pngLevel the PNG compression level from 0(fastest) to 9(smallest), 4 by default
+	 * @return this encoder
+	 */
+	public ImageEncoder setPngLevel(int pngLevel) {
+		if(pngLevel < 0 || pngLevel > 9) {
+			throw new IllegalArgumentException("png level must be between 0 and 9");
+		}
+		this.pngLevel = pngLevel;
+		return this;
+	}
+
+	/**
+	 * @return the PNG row filter
+	 */
+	public PngWriter.Filter getPngFilter() {
+		return pngFilter;
+	}
+
+	/**
+	 * @param pngFilter the PNG row filter, {@link PngWriter.Filter#ADAPTIVE} by default
+	 * @return this encoder
+	 */
+	public ImageEncoder setPngFilter(PngWriter.Filter pngFilter) {
+		if(pngFilter == null) {
+			throw new IllegalArgumentException("png filter cannot be null");
+		}
+		this.pngFilter = pngFilter;
+		return this;
+	}
+
+	/**
+	 * @return number of threads PNG data is compressed with
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads number of threads PNG data is compressed with, 1 by default
+	 * @return this encoder
+	 */
+	public ImageEncoder setThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * start a PNG with these settings, the rows are passed to it as a {@link ScanlineSink}.
+	 * @param out the stream to write the PNG to, closed with the writer
+	 * @param width the image width
+	 * @param height the image height
+	 * @param alpha true to keep the alpha of the pixels
+	 * @return the writer
+	 * @throws IOException if the header cannot be written
+	 */
+	public PngWriter createPngWriter(OutputStream out, int width, int height, boolean alpha) throws IOException {
+		return new PngWriter(out, width, height, alpha, pngLevel, pngFilter, threads);
+	}
+
+	/**
+	 * save an image, a PNG keeps 16 bits per channel when the image has them.
+	 * @param image the image, the alpha is dropped for JPEG
+	 * @param format png or jpg
+	 * @param output the file to save to
+	 * @throws IOException if the image cannot be saved
+	 */
+	public void write(BufferedImage image, String format, File output) throws IOException {
+		if(format.equals("png") && image.getColorModel().getComponentSize(0) > 8) {
+			try(ImageOutputStream stream = open(output)) {
+				writeDeepPng(image, stream);
+			}
+		} else if(format.equals("png")) {
+			try(PngWriter png = createPngWriter(new BufferedOutputStream(new FileOutputStream(output)),
+					image.getWidth(), image.getHeight(), true)) {
+				png.write(image);
+			}
+		} else if(format.equals("jpg")) {
+			writeJpeg(image, output);
+		} else {
+			throw new IllegalArgumentException("unknown format " + format);
+		}
+	}
+
+	/**
+	 * same as {@link #write(BufferedImage, String, File)} to a stream, for images that are
+	 * sent rather then saved.
+	 * @param image the image, the alpha is dropped for JPEG
+	 * @param format png or jpg
+	 * @param output the stream to write to, it is flushed and not closed
+	 * @throws IOException if the image cannot be written
+	 */
+	public void write(BufferedImage image, String format, OutputStream output) throws IOException {
+		if(format.equals("png") && image.getColorModel().getComponentSize(0) <= 8) {
+			PngWriter png = createPngWriter(new FilterOutputStream(output) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			}, image.getWidth(), image.getHeight(), true);
+			try {
+				png.write(image);
+			} finally {
+				png.close();
+			}
+			return;
+		}
+		if(!format.equals("png") && !format.equals("jpg")) {
+			throw new IllegalArgumentException("unknown format " + format);
+		}
+		// closing the image stream writes its cache to output and leaves output open
+		try(ImageOutputStream stream = new MemoryCacheImageOutputStream(output)) {
+			if(format.equals("png")) {
+				writeDeepPng(image, stream);
+			} else {
+				writeJpeg(image, stream);
+			}
+		}
+		output.flush();
+	}
+
+	/**
+	 * save an image as JPEG.<br>
+	 * the image is drawn over black, an opaque packed ARGB image is saved through an RGB view
+	 * of its pixels so no second image is allocated, see {@link #withoutAlpha(BufferedImage)}.
+	 * @param image the image
+	 * @param output the file to save to
+	 * @throws IOException if the image cannot be saved
+	 */
+	public void writeJpeg(BufferedImage image, File output) throws IOException {
+		try(ImageOutputStream stream = open(output)) {
+			writeJpeg(image, stream);
+		}
+	}
+
+	private void writeJpeg(BufferedImage image, ImageOutputStream stream) throws IOException {
+		image = withoutAlpha(image);
+		ImageWriter writer = writer("jpg");
+		try {
+			writer.setOutput(stream);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(jpegQuality);
+			if(progressive) {
+				param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+			}
+			if(optimizeHuffman && param instanceof JPEGImageWriteParam) {
+				((JPEGImageWriteParam) param).setOptimizeHuffmanTables(true);
+			}
+			IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+			setChroma(metadata);
+			writer.write(null, new IIOImage(image, null, metadata), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * save an image with more then 8 bits per channel as PNG with the ImageIO writer,
+	 * {@link PngWriter} writes 8 bits only. the compression level is passed as the
+	 * compression quality, the rows are filtered the way the writer chooses.
+	 */
+	private void writeDeepPng(BufferedImage image, ImageOutputStream stream) throws IOException {
+		ImageWriter writer = writer("png");
+		try {
+			writer.setOutput(stream);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if(param.canWriteCompressed()) {
+				// the writer uses level (int) (9 * (1 - quality))
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(Math.max(0, 1 - (pngLevel + 0.5f) / 9));
+			}
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	private static ImageWriter writer(String format) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+		if(!writers.hasNext()) {
+			throw new IOException("no " + format + " writer");
+		}
+		return writers.next();
+	}
+
+	private static ImageOutputStream open(File output) throws IOException {
+		// an existing longer file would keep its tail
+		if(output.exists() && !output.delete()) {
+			throw new IOException("cannot replace " + output);
+		}
+		ImageOutputStream stream = ImageIO.createImageOutputStream(output);
+		if(stream == null) {
+			throw new IOException("cannot write " + output);
+		}
+		return stream;
+	}
+
+	/**
+	 * the image drawn over black without the alpha channel.<br>
+	 * a packed int image whose pixels are all opaque, as the crop of an opaque source inside
+	 * its bounds, is wrapped with a color model that reads only the red, green and blue bits
+	 * of its pixels, the pixels are shared and the alpha bits are ignored.<br>
+	 * other images, and packed images with partly transparent pixels, are copied, drawn over black.
+	 * @param image an image with or without alpha
+	 * @return the image itself if it has no alpha, an RGB image otherwise
+	 */
+	static BufferedImage withoutAlpha(BufferedImage image) {
+		if(!image.getColorModel().hasAlpha()) {
+			return image;
+		}
+		WritableRaster raster = image.getRaster();
+		if(raster.getDataBuffer() instanceof DataBufferInt && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& raster.getParent() == null && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+			SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+			int[] masks = model.getBitMasks();
+			if(masks.length == 4 && masks[0] == 0xFF0000 && masks[1] == 0xFF00 && masks[2] == 0xFF
+					&& opaque(raster, model, masks[3])) {
+				int[] rgb = { masks[0], masks[1], masks[2] };
+				WritableRaster view = Raster.createPackedRaster(raster.getDataBuffer(), image.getWidth(), image.getHeight(),
+						model.getScanlineStride(), rgb, null);
+				return new BufferedImage(new DirectColorModel(24, rgb[0], rgb[1], rgb[2]), view, false, null);
+			}
+		}
+		BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = copy.createGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return copy;
+	}
+
+	/**
+	 * @return true if the alpha bits of every pixel of a packed int raster are all set
+	 */
+	private static boolean opaque(WritableRaster raster, SinglePixelPackedSampleModel model, int alpha) {
+		int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+		int offset = raster.getDataBuffer().getOffset(), stride = model.getScanlineStride();
+		for(int y=0;y<raster.getHeight();y++) {
+			for(int i=offset+y*stride, end=i+raster.getWidth();i<end;i++) {
+				if((data[i] & alpha) != alpha) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * set the sampling factors of the brightness component, the color components stay 1x1.
+	 * a gray image has no color components and is left as it is.
+	 */
+	private void setChroma(IIOMetadata metadata) throws IOException {
+		String format = "javax_imageio_jpeg_image_1.0";
+		Node tree = metadata.getAsTree(format);
+		NodeList components = ((Element) tree).getElementsByTagName("componentSpec");
+		if(components.getLength() < 3) {
+			return;
+		}
+		for(int i=0;i<components.getLength();i++) {
+			Element component = (Element) components.item(i);
+			component.setAttribute("HsamplingFactor", Integer.toString(i == 0 ? chroma.horizontal : 1));
+			component.setAttribute("VsamplingFactor", Integer.toString(i == 0 ? chroma.vertical : 1));
+		}
+		metadata.setFromTree(format, tree);
+	}
+}
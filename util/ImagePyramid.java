@@ -0,0 +1,146 @@
+package util;
+import java.awt.image.BufferedImage;
+
+
+/**
+ * a source image with its smaller copies, every level is half the size of the one
+ * before it where each pixel is the average of four pixels, down to a single pixel.<br>
+ * when the destination is much smaller then the area it is taken from, sampling only
+ * the full size image skips most of its pixels and the result is aliased. sampling the
+ * level that matches the local scale of the transform averages all of them.<br>
+ * the pyramid is built once and can be shared between several crops of the same image.
+ * <pre>
+ * example:
+ * ImagePyramid pyramid = new ImagePyramid(image);
+ * new WarpOptions().setPyramid(pyramid)
+ * </pre>
+ */
+public class ImagePyramid {
+
+	private final BufferedImage source;
+	private final PixelBuffer[] levels;
+
+	/**
+	 * build the levels of an image.
+	 * @param source the full size image
+	 */
+	public ImagePyramid(BufferedImage source) {
+		this.source = source;
+		int count = 1;
+		for(int w=source.getWidth(), h=source.getHeight(); w > 1 || h > 1; w=(w+1)/2, h=(h+1)/2) {
+			count++;
+		}
+		levels = new PixelBuffer[count];
+		levels[0] = PixelBuffer.wrap(source);
+		for(int i=1;i<count;i++) {
+			levels[i] = half(levels[i-1]);
+		}
+	}
+
+	/**
+	 * @return the full size image the pyramid was built from
+	 */
+	public BufferedImage getSource() {
+		return source;
+	}
+
+	/**
+	 * @return number of levels including the full size image
+	 */
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	/**
+	 * @param level 0 for the full size image, every next level is half the size
+	 * @return the level image
+	 */
+	public PixelBuffer getLevel(int level) {
+		return levels[level];
+	}
+
+	/**
+	 * find the value of the source image at a position with a footprint of scale pixels,
+	 * the two levels around the scale are sampled and blended(trilinear when bilinear
+	 * interpolation is used).
+	 * a scale of one or less samples the full size image only, same as sampling it directly.
+	 * otherwise every level is opaque up to the last pixel of the full size image and 0 past
+	 * it, the full size image is not faded toward its edge so the border does not change with
+	 * the scale.
+	 * @param interpolation the way each level is sampled
+	 * @param x the x position on the full size image
+	 * @param y the y position on the full size image
+	 * @param scale number of source pixels one destination pixel covers along its longer side
+	 * @return the pixel value as packed ARGB, 0 if the position is outside the image
+	 */
+	public int sample(Interpolator interpolation, double x, double y, double scale) {
+		if(!(scale > 1)) {
+			return interpolation.sample(levels[0], x, y);
+		}
+		double lod = Math.log(scale) / Math.log(2);
+		int level = (int) lod;
+		if(level >= levels.length - 1) {
+			return sampleLevel(interpolation, levels.length - 1, x, y);
+		}
+		double t = lod - level;
+		int p1 = sampleLevel(interpolation, level, x, y);
+		int p2 = sampleLevel(interpolation, level + 1, x, y);
+		return mix(p1, p2, t);
+	}
+
+	/**
+	 * sample a level with a position on the full size image, pixel centers are
+	 * at (x+0.5)/2^level-0.5 on the level.
+	 */
+	private int sampleLevel(Interpolator interpolation, int level, double x, double y) {
+		// the position is checked against the full size image at every level, so the edge is
+		// the same whichever levels are mixed, and since the last pixel of a level with an odd
+		// size covers only half of its area
+		if(x < 0 || y < 0 || x > source.getWidth() - 1 || y > source.getHeight() - 1) {
+			return 0;
+		}
+		if(level == 0) {
+			return interpolation.sample(levels[0], x, y);
+		}
+		PixelBuffer image = levels[level];
+		double f = 1.0 / (1 << level);
+		double lx = Math.min((x + 0.5) * f - 0.5, image.getWidth() - 1);
+		double ly = Math.min((y + 0.5) * f - 0.5, image.getHeight() - 1);
+		return interpolation.sample(image, Math.max(lx, 0), Math.max(ly, 0));
+	}
+
+	private static int mix(int p1, int p2, double t) {
+		double s = 1 - t;
+		int a = (int) ((p1 >>> 24) * s + (p2 >>> 24) * t + 0.5);
+		int r = (int) (((p1 >> 16) & 0xFF) * s + ((p2 >> 16) & 0xFF) * t + 0.5);
+		int g = (int) (((p1 >> 8) & 0xFF) * s + ((p2 >> 8) & 0xFF) * t + 0.5);
+		int b = (int) ((p1 & 0xFF) * s + (p2 & 0xFF) * t + 0.5);
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	/**
+	 * @return an image half the size where each pixel is the average of four pixels,
+	 * 			the last row and column of an odd size image repeat the edge
+	 */
+	private static PixelBuffer half(PixelBuffer image) {
+		int width = image.getWidth(), height = image.getHeight();
+		int w = (width + 1) / 2, h = (height + 1) / 2;
+		PixelBuffer half = PixelBuffer.wrap(new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB));
+		int[] row = new int[w];
+		for(int y=0;y<h;y++) {
+			int y1 = 2*y, y2 = Math.min(2*y + 1, height - 1);
+			for(int x=0;x<w;x++) {
+				int x1 = 2*x, x2 = Math.min(2*x + 1, width - 1);
+				int p11 = image.getARGB(x1, y1), p12 = image.getARGB(x2, y1),
+					p21 = image.getARGB(x1, y2), p22 = image.getARGB(x2, y2);
+				int a = ((p11 >>> 24) + (p12 >>> 24) + (p21 >>> 24) + (p22 >>> 24) + 2) >> 2;
+				// red and blue together, each sum fits in 10 bits
+				int rb = (p11 & 0xFF00FF) + (p12 & 0xFF00FF) + (p21 & 0xFF00FF) + (p22 & 0xFF00FF) + 0x20002;
+				int g = (p11 & 0xFF00) + (p12 & 0xFF00) + (p21 & 0xFF00) + (p22 & 0xFF00) + 0x200;
+				row[x] = (a << 24) | ((rb >> 2) & 0xFF00FF) | ((g >> 2) & 0xFF00);
+			}
+			half.setRow(0, y, row, 0, w);
+		}
+		return half;
+	}
+}
@@ -0,0 +1,248 @@
+package util;
+
+
+/**
+ * the available ways of finding the value of an image between its pixels.
+ * <pre>
+ * NEAREST         the closest pixel, fast drafts
+ * BILINEAR        four pixels around the position, see {@link Pixels#smoth(double, double, PixelBuffer)}
+ * BILINEAR_FIXED  same as BILINEAR with integer arithmetic, see {@link Pixels#smothFixed(double, double, PixelBuffer)}
+ * BICUBIC         16 pixels around the position weighted by the Catmull-Rom cubic
+ * LANCZOS3        36 pixels around the position weighted by the 3 lobes Lanczos window
+ * </pre>
+ * BICUBIC and LANCZOS3 look up their weights in a table computed once for
+ * {@link #PHASES} fractions between two pixels, a pixel is blended with integer arithmetic
+ * from the table so it costs a few times a bilinear pixel. pixels of the kernel that fall
+ * outside the image repeat the edge pixel, a position outside the image is 0.
+ */
+public enum Interpolation implements Interpolator {
+
+	NEAREST(0, 1) {
+		@Override
+		public int sample(PixelBuffer image, double x, double y) {
+			x += 0.5;
+			y += 0.5;
+			int X = (int)x, Y = (int)y;
+			if(x < 0 || y < 0 || X >= image.getWidth() || Y >= image.getHeight()) {
+				return 0;
+			}
+			return image.getARGB(X, Y);
+		}
+
+		@Override
+		int sampleInside(PixelBuffer image, double x, double y) {
+			return image.getARGB((int)(x + 0.5), (int)(y + 0.5));
+		}
+	},
+	BILINEAR(0, 1) {
+		@Override
+		public int sample(PixelBuffer image, double x, double y) {
+			return Pixels.smoth(x, y, image);
+		}
+
+		@Override
+		int sampleInside(PixelBuffer image, double x, double y) {
+			return Pixels.smothInside(x, y, image);
+		}
+	},
+	BILINEAR_FIXED(0, 1) {
+		@Override
+		public int sample(PixelBuffer image, double x, double y) {
+			return Pixels.smothFixed(x, y, image);
+		}
+
+		@Override
+		int sampleInside(PixelBuffer image, double x, double y) {
+			return Pixels.smothFixedInside(x, y, image);
+		}
+	},
+	BICUBIC(1, 2) {
+		@Override
+		public int sample(PixelBuffer image, double x, double y) {
+			return convolve(image, x, y, Tables.BICUBIC, 4, false);
+		}
+
+		@Override
+		int sampleInside(PixelBuffer image, double x, double y) {
+			return convolve(image, x, y, Tables.BICUBIC, 4, true);
+		}
+	},
+	LANCZOS3(2, 3) {
+		@Override
+		public int sample(PixelBuffer image, double x, double y) {
+			return convolve(image, x, y, Tables.LANCZOS3, 6, false);
+		}
+
+		@Override
+		int sampleInside(PixelBuffer image, double x, double y) {
+			return convolve(image, x, y, Tables.LANCZOS3, 6, true);
+		}
+	};
+
+	/**
+	 * number of fractions between two pixels the kernel weights are computed for.
+	 */
+	public static final int PHASES = 256;
+
+	/**
+	 * the weights of a phase add up to 2^WEIGHT_BITS.
+	 */
+	private static final int WEIGHT_BITS = 14;
+
+	private final int before, after;
+
+	/**
+	 * @param before number of pixels left of(above) the position the kernel reads
+	 * @param after number of pixels right of(below) the position the kernel may read
+	 */
+	private Interpolation(int before, int after) {
+		this.before = before;
+		this.after = after;
+	}
+
+	/**
+	 * the interior of an image is where a position x satisfies
+	 * before() &lt;= x &lt; width - after(), and the same for y.
+	 * @return the interior distance from the left and top edges
+	 */
+	int before() {
+		return before;
+	}
+
+	/**
+	 * @return the interior distance from the right and bottom edges, see {@link #before()}
+	 */
+	int after() {
+		return after;
+	}
+
+	/**
+	 * same as {@link #sample(PixelBuffer, double, double)} for a position in the interior of the 
+	 * image, see {@link #before()}, the kernel is read without any bounds checks.
+	 */
+	abstract int sampleInside(PixelBuffer image, double x, double y);
+
+	/**
+	 * find an interpolation by its name, ignoring case and allowing '-' for '_'.
+	 * @param name an interpolation name, for example "bicubic" or "bilinear-fixed"
+	 * @return the interpolation
+	 * @throws IllegalArgumentException if there is no interpolation with that name
+	 */
+	public static Interpolation forName(String name) {
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+
+	/**
+	 * weight the taps x taps pixels around (x, y) by a separable kernel.
+	 * @param table the kernel weights, taps weights for every phase from 0 to PHASES
+	 * @param taps the kernel width in pixels, even
+	 * @param inside true if the whole kernel is inside the image
+	 */
+	private static int convolve(PixelBuffer image, double x, double y, int[] table, int taps, boolean inside) {
+		int X = (int)x, Y = (int)y;
+		if(x < X) X--;
+		if(y < Y) Y--;
+		int width = image.getWidth(), height = image.getHeight();
+		if(!inside && (X < 0 || X >= width || Y < 0 || Y >= height)) {
+			return 0;
+		}
+
+		int wx = (int) ((x - X) * PHASES + 0.5) * taps, wy = (int) ((y - Y) * PHASES + 0.5) * taps;
+		int first = 1 - taps/2;
+
+		long a = 0, r = 0, g = 0, b = 0;
+		for(int j=0;j<taps;j++) {
+			int sy = inside ? Y + first + j : clamp(Y + first + j, height);
+			int ra = 0, rr = 0, rg = 0, rb = 0;
+			for(int i=0;i<taps;i++) {
+				int p = image.getARGB(inside ? X + first + i : clamp(X + first + i, width), sy);
+				int w = table[wx + i];
+				ra += (p >>> 24) * w;
+				rr += ((p >> 16) & 0xFF) * w;
+				rg += ((p >> 8) & 0xFF) * w;
+				rb += (p & 0xFF) * w;
+			}
+			int w = table[wy + j];
+			a += (long) ra * w;
+			r += (long) rr * w;
+			g += (long) rg * w;
+			b += (long) rb * w;
+		}
+
+		return (channel(a) << 24) | (channel(r) << 16) | (channel(g) << 8) | channel(b);
+	}
+
+	private static int clamp(int v, int size) {
+		return v < 0 ? 0 : (v >= size ? size - 1 : v);
+	}
+
+	/**
+	 * round a channel weighted twice and keep it between 0 and 255.
+	 */
+	private static int channel(long v) {
+		int c = (int) ((v + (1L << (2*WEIGHT_BITS - 1))) >> (2*WEIGHT_BITS));
+		return c < 0 ? 0 : (c > 255 ? 255 : c);
+	}
+
+	/**
+	 * kernel weights tables, built the first time a kernel is used.
+	 */
+	private static class Tables {
+
+		static final int[] BICUBIC = build(4, 2);
+		static final int[] LANCZOS3 = build(6, 3);
+
+		/**
+		 * @param taps kernel width in pixels
+		 * @param kernel 2 for the cubic, 3 for lanczos
+		 * @return taps weights for every phase from 0 to PHASES
+		 */
+		private static int[] build(int taps, int kernel) {
+			int[] table = new int[(PHASES + 1) * taps];
+			int one = 1 << WEIGHT_BITS;
+			for(int phase=0;phase<=PHASES;phase++) {
+				double f = phase / (double) PHASES;
+				double[] w = new double[taps];
+				double sum = 0;
+				for(int i=0;i<taps;i++) {
+					double d = f - (i + 1 - taps/2);
+					w[i] = kernel == 2 ? cubic(d) : lanczos(d, kernel);
+					sum += w[i];
+				}
+				// normalize to exactly one so flat areas keep their value
+				int total = 0, center = taps/2 - 1;
+				for(int i=0;i<taps;i++) {
+					table[phase*taps + i] = (int) Math.round(w[i] / sum * one);
+					total += table[phase*taps + i];
+				}
+				table[phase*taps + center + (f < 0.5 ? 0 : 1)] += one - total;
+			}
+			return table;
+		}
+
+		/**
+		 * Catmull-Rom cubic(a = -0.5).
+		 */
+		private static double cubic(double d) {
+			d = Math.abs(d);
+			if(d < 1) {
+				return 1.5*d*d*d - 2.5*d*d + 1;
+			}
+			if(d < 2) {
+				return -0.5*d*d*d + 2.5*d*d - 4*d + 2;
+			}
+			return 0;
+		}
+
+		private static double lanczos(double d, int lobes) {
+			if(d == 0) {
+				return 1;
+			}
+			if(Math.abs(d) >= lobes) {
+				return 0;
+			}
+			double px = Math.PI * d;
+			return lobes * Math.sin(px) * Math.sin(px / lobes) / (px * px);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package util;
+
+
+/**
+ * finds the value of an image at a floating point position, used by
+ * {@link PerspectiveTransform#writeTransformed(java.awt.image.BufferedImage, int, int, double[][], java.awt.image.BufferedImage, WarpOptions) writeTransformed}
+ * for every destination pixel.<br>
+ * pixel (x, y) is centered on the integer position (x, y). see {@link Interpolation} for the available ones.
+ */
+public interface Interpolator {
+
+	/**
+	 * @param image an image
+	 * @param x the x floating point value
+	 * @param y the y floating point value
+	 * @return the pixel value at (x, y) as packed ARGB, 0 if the position is outside the image
+	 */
+	int sample(PixelBuffer image, double x, double y);
+}
@@ -0,0 +1,258 @@
+package util;
+import util.PixelBuffer.ArrayBuffer;
+import util.PixelBuffer.Layout;
+
+
+/**
+ * bilinear kernels that blend the channels as they are stored in the source and
+ * the destination arrays, without packing every pixel to ARGB and back.
+ * <pre>
+ * supported source to destination layouts:
+ * TYPE_BYTE_GRAY   to TYPE_BYTE_GRAY    one channel
+ * TYPE_3BYTE_BGR   to TYPE_3BYTE_BGR    three channels, no alpha
+ * TYPE_3BYTE_BGR   to TYPE_INT_RGB      three channels, no alpha
+ * TYPE_4BYTE_ABGR  to TYPE_4BYTE_ABGR   four channels
+ * TYPE_4BYTE_ABGR  to TYPE_INT_ARGB     four channels
+ * 16 bit gray      to 16 bit gray       one channel
+ * 16 bit RGB       to 16 bit RGB        three channels, no alpha
+ * 16 bit RGB       to 16 bit RGBA       three channels, the alpha of the source pixels is opaque
+ * 16 bit RGBA      to 16 bit RGBA       four channels
+ * </pre>
+ * 16 bit images are blended on their 16 bit values and never reduced to 8 bits.<br>
+ * every channel is blended with the same operations in the same order as
+ * {@link Pixels#smoth(double, double, PixelBuffer)}, a destination without alpha drops
+ * the alpha that would be blended so the colors are identical to building through
+ * packed ARGB, for gray the packed ARGB is the stored gray in every channel, see {@link PixelBuffer}.
+ */
+final class LayoutKernel {
+
+	private LayoutKernel() {
+	}
+
+	/**
+	 * @return true if the pixels of source can be blended directly into destination, both
+	 * 			are then {@link ArrayBuffer}s
+	 */
+	static boolean supports(PixelBuffer source, PixelBuffer destination) {
+		Layout to = destination.getLayout();
+		switch(source.getLayout()) {
+		case BYTE_GRAY:
+			return to == Layout.BYTE_GRAY;
+		case BYTE_BGR:
+			return to == Layout.BYTE_BGR || to == Layout.INT_RGB;
+		case BYTE_ABGR:
+			return to == Layout.BYTE_ABGR || to == Layout.INT_ARGB;
+		case USHORT_GRAY:
+			return to == Layout.USHORT_GRAY;
+		case USHORT_RGB:
+			return to == Layout.USHORT_RGB || to == Layout.USHORT_RGBA;
+		case USHORT_RGBA:
+			return to == Layout.USHORT_RGBA;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * build the destination pixels (x0, y) to (x1, y) directly in the destination array.
+	 * @param source the original image, see {@link #supports(PixelBuffer, PixelBuffer)}
+	 * @param mmt a perspective transform matrix
+	 * @param destination the destination image
+	 * @param x0 the first x position
+	 * @param x1 the x position after the last one
+	 * @param y the row
+	 */
+	static void writeRow(ArrayBuffer source, double[][] mmt, ArrayBuffer destination, int x0, int x1, int y) {
+		if(source.getData() instanceof short[]) {
+			writeRow16(source, mmt, destination, x0, x1, y);
+			return;
+		}
+		int width = source.getWidth(), height = source.getHeight();
+		byte[] src = (byte[]) source.getData();
+		int channels = source.getLayout().channels, pixel = source.getLayout().pixelStride;
+		// the pixel (x, y) is at base + y*stride + x*pixel
+		int base = source.offset(0, 0), stride = height > 1 ? source.offset(0, 1) - base : 0;
+
+		int[] ints = destination.getData() instanceof int[] ? (int[]) destination.getData() : null;
+		byte[] bytes = ints == null ? (byte[]) destination.getData() : null;
+		int d = destination.offset(x0, y), step = destination.getLayout().pixelStride;
+
+		// the positions of the span have all four pixels inside the image
+		int[] span = new int[2];
+		PerspectiveTransform.interiorSpan(mmt, y, x0, x1, 0, 0, width - 1, height - 1, span);
+
+		double m00 = mmt[0][0], m01 = mmt[0][1], m02 = mmt[0][2],
+			   m10 = mmt[1][0], m11 = mmt[1][1], m12 = mmt[1][2],
+			   m20 = mmt[2][0], m21 = mmt[2][1], m22 = mmt[2][2];
+		double X, Y, W;
+		int[] value = new int[4];
+
+		for(int x=x0;x<x1;x++, d+=step) {
+			W = x*m20 + y*m21 + m22;
+			X = (x*m00 + y*m01 + m02) / W;
+			Y = (x*m10 + y*m11 + m12) / W;
+
+			// the channels in the order they are stored in the source
+			int v0, v1 = 0, v2 = 0, v3 = 0;
+			if(x >= span[0] && x < span[1]) {
+				int sx = (int) X, sy = (int) Y;
+				double dx = X - sx, dy = Y - sy;
+				double tl = (1-dx)*(1-dy), tr = dx*(1-dy), bl = (1-dx)*dy, br = dx*dy;
+				int p11 = base + sy*stride + sx*pixel, p12 = p11 + pixel, p21 = p11 + stride, p22 = p21 + pixel;
+				v0 = blend(src, p11, p12, p21, p22, tl, tr, bl, br);
+				if(channels > 1) {
+					v1 = blend(src, p11 + 1, p12 + 1, p21 + 1, p22 + 1, tl, tr, bl, br);
+					v2 = blend(src, p11 + 2, p12 + 2, p21 + 2, p22 + 2, tl, tr, bl, br);
+					if(channels > 3) {
+						v3 = blend(src, p11 + 3, p12 + 3, p21 + 3, p22 + 3, tl, tr, bl, br);
+					}
+				}
+			} else {
+				sampleChecked(src, base, channels, pixel, stride, width, height, X, Y, value);
+				v0 = value[0];
+				v1 = value[1];
+				v2 = value[2];
+				v3 = value[3];
+			}
+
+			if(ints != null) {
+				// ABGR to 0xAARRGGBB, BGR to 0x00RRGGBB
+				ints[d] = channels == 4 
+						? (v0 & 0xFF) << 24 | (v3 & 0xFF) << 16 | (v2 & 0xFF) << 8 | (v1 & 0xFF)
+						: (v2 & 0xFF) << 16 | (v1 & 0xFF) << 8 | (v0 & 0xFF);
+			} else {
+				bytes[d] = (byte) v0;
+				if(channels > 1) {
+					bytes[d + 1] = (byte) v1;
+					bytes[d + 2] = (byte) v2;
+					if(channels > 3) {
+						bytes[d + 3] = (byte) v3;
+					}
+				}
+			}
+		}
+	}
+
+	private static int blend(byte[] src, int p11, int p12, int p21, int p22, double tl, double tr, double bl, double br) {
+		return (int) ((src[p11] & 0xFF)*tl + (src[p12] & 0xFF)*tr + (src[p21] & 0xFF)*bl + (src[p22] & 0xFF)*br);
+	}
+
+	/**
+	 * same as {@link Pixels#smoth(double, double, PixelBuffer)} for every channel, the pixels
+	 * outside the image are zero.
+	 */
+	private static void sampleChecked(byte[] src, int base, int channels, int pixel, int stride,
+			int width, int height, double x, double y, int[] value) {
+		double dx = Math.abs(x) -  Math.abs((int)x), dy = Math.abs(y) -  Math.abs((int)y);
+		int X = (int)x, Y = (int)y;
+		if(!(X >= 0 && X < width && Y >= 0 && Y < height)) {
+			for(int c=0;c<channels;c++) {
+				value[c] = 0;
+			}
+			return;
+		}
+		double tl = (1-dx)*(1-dy), tr = dx*(1-dy), bl = (1-dx)*dy, br = dx*dy;
+		int p11 = base + Y*stride + X*pixel;
+		boolean right = X+1 < width, below = Y+1 < height;
+		for(int c=0;c<channels;c++) {
+			int c11 = src[p11 + c] & 0xFF,
+				c12 = right ? src[p11 + pixel + c] & 0xFF : 0,
+				c21 = below ? src[p11 + stride + c] & 0xFF : 0,
+				c22 = right && below ? src[p11 + stride + pixel + c] & 0xFF : 0;
+			value[c] = (int) (c11*tl + c12*tr + c21*bl + c22*br);
+		}
+	}
+
+	/**
+	 * same as {@link #writeRow(ArrayBuffer, double[][], ArrayBuffer, int, int, int)} for 16 bit
+	 * channels, the destination layout is the same as the source or RGBA for an RGB source.
+	 */
+	private static void writeRow16(ArrayBuffer source, double[][] mmt, ArrayBuffer destination, int x0, int x1, int y) {
+		int width = source.getWidth(), height = source.getHeight();
+		short[] src = (short[]) source.getData(), dest = (short[]) destination.getData();
+		int channels = source.getLayout().channels, pixel = source.getLayout().pixelStride;
+		int base = source.offset(0, 0), stride = height > 1 ? source.offset(0, 1) - base : 0;
+		int d = destination.offset(x0, y), step = destination.getLayout().pixelStride;
+		// an opaque source blends a constant alpha, same as 8 bit sources read as opaque
+		boolean opaque = channels == 3 && step == 4;
+
+		int[] span = new int[2];
+		PerspectiveTransform.interiorSpan(mmt, y, x0, x1, 0, 0, width - 1, height - 1, span);
+
+		double m00 = mmt[0][0], m01 = mmt[0][1], m02 = mmt[0][2],
+			   m10 = mmt[1][0], m11 = mmt[1][1], m12 = mmt[1][2],
+			   m20 = mmt[2][0], m21 = mmt[2][1], m22 = mmt[2][2];
+		double X, Y, W;
+		int[] value = new int[4];
+
+		for(int x=x0;x<x1;x++, d+=step) {
+			W = x*m20 + y*m21 + m22;
+			X = (x*m00 + y*m01 + m02) / W;
+			Y = (x*m10 + y*m11 + m12) / W;
+
+			int v0, v1 = 0, v2 = 0, v3 = 0;
+			if(x >= span[0] && x < span[1]) {
+				int sx = (int) X, sy = (int) Y;
+				double dx = X - sx, dy = Y - sy;
+				double tl = (1-dx)*(1-dy), tr = dx*(1-dy), bl = (1-dx)*dy, br = dx*dy;
+				int p11 = base + sy*stride + sx*pixel, p12 = p11 + pixel, p21 = p11 + stride, p22 = p21 + pixel;
+				v0 = blend(src, p11, p12, p21, p22, tl, tr, bl, br);
+				if(channels > 1) {
+					v1 = blend(src, p11 + 1, p12 + 1, p21 + 1, p22 + 1, tl, tr, bl, br);
+					v2 = blend(src, p11 + 2, p12 + 2, p21 + 2, p22 + 2, tl, tr, bl, br);
+					if(channels > 3) {
+						v3 = blend(src, p11 + 3, p12 + 3, p21 + 3, p22 + 3, tl, tr, bl, br);
+					} else if(opaque) {
+						v3 = (int) (0xFFFF*tl + 0xFFFF*tr + 0xFFFF*bl + 0xFFFF*br);
+					}
+				}
+			} else {
+				sampleChecked16(src, base, channels, pixel, stride, width, height, X, Y, opaque, value);
+				v0 = value[0];
+				v1 = value[1];
+				v2 = value[2];
+				v3 = value[3];
+			}
+
+			dest[d] = (short) v0;
+			if(step > 1) {
+				dest[d + 1] = (short) v1;
+				dest[d + 2] = (short) v2;
+				if(step > 3) {
+					dest[d + 3] = (short) v3;
+				}
+			}
+		}
+	}
+
+	private static int blend(short[] src, int p11, int p12, int p21, int p22, double tl, double tr, double bl, double br) {
+		return (int) ((src[p11] & 0xFFFF)*tl + (src[p12] & 0xFFFF)*tr + (src[p21] & 0xFFFF)*bl + (src[p22] & 0xFFFF)*br);
+	}
+
+	/**
+	 * same as {@link #sampleChecked(byte[], int, int, int, int, int, int, double, double, int[])} for 16 bit
+	 * channels, when opaque the alpha of the pixels inside the image is written to value[3].
+	 */
+	private static void sampleChecked16(short[] src, int base, int channels, int pixel, int stride,
+			int width, int height, double x, double y, boolean opaque, int[] value) {
+		double dx = Math.abs(x) -  Math.abs((int)x), dy = Math.abs(y) -  Math.abs((int)y);
+		int X = (int)x, Y = (int)y;
+		if(!(X >= 0 && X < width && Y >= 0 && Y < height)) {
+			value[0] = value[1] = value[2] = value[3] = 0;
+			return;
+		}
+		double tl = (1-dx)*(1-dy), tr = dx*(1-dy), bl = (1-dx)*dy, br = dx*dy;
+		int p11 = base + Y*stride + X*pixel;
+		boolean right = X+1 < width, below = Y+1 < height;
+		for(int c=0;c<channels;c++) {
+			int c11 = src[p11 + c] & 0xFFFF,
+				c12 = right ? src[p11 + pixel + c] & 0xFFFF : 0,
+				c21 = below ? src[p11 + stride + c] & 0xFFFF : 0,
+				c22 = right && below ? src[p11 + stride + pixel + c] & 0xFFFF : 0;
+			value[c] = (int) (c11*tl + c12*tr + c21*bl + c22*br);
+		}
+		if(opaque) {
+			value[3] = (int) (0xFFFF*tl + (right ? 0xFFFF : 0)*tr + (below ? 0xFFFF : 0)*bl + (right && below ? 0xFFFF : 0)*br);
+		}
+	}
+}
@@ -1,16 +1,16 @@
 package util;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
-import org.apache.commons.math3.linear.LUDecomposition;
-import org.apache.commons.math3.linear.NonSquareMatrixException;
-import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.SingularMatrixException;
 import org.apache.commons.math3.util.MathArrays;
 
@@ -41,40 +41,157 @@ public class PerspectiveTransform {
 	 * | x31 x32 x33 |
 	 * +-           -+
 	 * </pre>
+	 * the system is solved in closed form, see {@link #matrix(int[][], int[][], double[])}.
 	 * @param src a rectangular shape represented by an array of four (x, y) coordinates 
 	 * @param dest a rectangular shape represented by an array of four (x, y) coordinates that corresponds to the src coordinates
 	 * @return the multiplication matrix that can turn the source rectangular to the destination rectangular.
-	 * @throws DegenerateMatrixException if the matrix is degenerate meaning there is not a single solution to the problem.
-	 */
-	public static double[][] matrix(int[][] src, int[][] dest) 
-			throws NonSquareMatrixException, SingularMatrixException {
-		
-		double[][] A = 
-			   { { dest[0][0], dest[0][1], 1, 0, 0, 0, -src[0][0]*dest[0][0], -src[0][0]*dest[0][1], -src[0][0] },
-				 { 0, 0, 0, dest[0][0], dest[0][1], 1, -src[0][1]*dest[0][0], -src[0][1]*dest[0][1], -src[0][1] },
-				 { dest[1][0], dest[1][1], 1, 0, 0, 0, -src[1][0]*dest[1][0], -src[1][0]*dest[1][1], -src[1][0] },
-				 { 0, 0, 0, dest[1][0], dest[1][1], 1, -src[1][1]*dest[1][0], -src[1][1]*dest[1][1], -src[1][1] },
-				 { dest[2][0], dest[2][1], 1, 0, 0, 0, -src[2][0]*dest[2][0], -src[2][0]*dest[2][1], -src[2][0] },
-				 { 0, 0, 0, dest[2][0], dest[2][1], 1, -src[2][1]*dest[2][0], -src[2][1]*dest[2][1], -src[2][1] },
-				 { dest[3][0], dest[3][1], 1, 0, 0, 0, -src[3][0]*dest[3][0], -src[3][0]*dest[3][1], -src[3][0] },
-				 { 0, 0, 0, dest[3][0], dest[3][1], 1, -src[3][1]*dest[3][0], -src[3][1]*dest[3][1], -src[3][1] },
-				 { 0, 0, 0, 0, 0, 0, 0, 0, 1 } };
-
-		double[] b = { 0, 0, 0, 0, 0, 0, 0, 0, 1 };
-		
-		RealMatrix x = new LUDecomposition(new Array2DRowRealMatrix(A))
-								.getSolver()
-								.solve(new Array2DRowRealMatrix(b));
+	 * @throws SingularMatrixException if the matrix is degenerate meaning there is not a single solution to the problem.
+	 */
+	public static double[][] matrix(int[][] src, int[][] dest) throws SingularMatrixException {
 		
-		double[][] X = x.getData();
+		double[] X = new double[9];
+		matrix(src, dest, X);
 		
-		double[][] mmt = new double[][]{{ X[0][0], X[1][0], X[2][0] }, 
-										{ X[3][0], X[4][0], X[5][0] }, 
-										{ X[6][0], X[7][0], X[8][0] }};
+		double[][] mmt = new double[][]{{ X[0], X[1], X[2] }, 
+										{ X[3], X[4], X[5] }, 
+										{ X[6], X[7], X[8] }};
 
 		return mmt;
 	}
 	
+	/**
+	 * same as {@link #matrix(int[][], int[][])} without allocating, the matrix is
+	 * written to mmt row after row.
+	 * <pre>
+	 * the matrix is found in closed form through the unit square:
+	 * S maps the unit square corners (0,0) (1,0) (1,1) (0,1) to the src coordinates
+	 * D maps the unit square corners (0,0) (1,0) (1,1) (0,1) to the dest coordinates
+	 * the matrix is S * adjugate(D), adjugate(D) is the inverse of D up to scale.
+	 * a square to a rectangular shape mapping is:
+	 * +-       -+
+	 * | a  b  c |  c = x1, f = y1 
+	 * | d  e  f |  g, h make the corner (1,1) land on (x3, y3)
+	 * | g  h  1 |  a = x2-x1+g*x2, b = x4-x1+h*x4, d = y2-y1+g*y2, e = y4-y1+h*y4
+	 * +-       -+
+	 * </pre>
+	 * @param src a rectangular shape represented by an array of four (x, y) coordinates 
+	 * @param dest a rectangular shape represented by an array of four (x, y) coordinates that corresponds to the src coordinates
+	 * @param mmt an array of 9 to write the matrix to
+	 * @throws SingularMatrixException if the matrix is degenerate meaning there is not a single solution to the problem.
+	 */
+	public static void matrix(int[][] src, int[][] dest, double[] mmt) throws SingularMatrixException {
+		
+		// D, unit square to dest, kept in mmt for now
+		squareToQuad(dest, mmt);
+		double a = mmt[0], b = mmt[1], c = mmt[2], 
+			   d = mmt[3], e = mmt[4], f = mmt[5], 
+			   g = mmt[6], h = mmt[7], i = mmt[8];
+		
+		// adjugate(D)
+		double A = e*i - f*h, B = c*h - b*i, C = b*f - c*e,
+			   D = f*g - d*i, E = a*i - c*g, F = c*d - a*f,
+			   G = d*h - e*g, H = b*g - a*h, I = a*e - b*d;
+		double det = a*A + b*D + c*G;
+		if(isZero(det, Math.abs(a*A) + Math.abs(b*D) + Math.abs(c*G))) {
+			throw new SingularMatrixException();
+		}
+		
+		// S, unit square to src
+		squareToQuad(src, mmt);
+		a = mmt[0]; b = mmt[1]; c = mmt[2]; 
+		d = mmt[3]; e = mmt[4]; f = mmt[5]; 
+		g = mmt[6]; h = mmt[7]; i = mmt[8];
+		
+		// S * adjugate(D)
+		mmt[0] = a*A + b*D + c*G; mmt[1] = a*B + b*E + c*H; mmt[2] = a*C + b*F + c*I;
+		mmt[3] = d*A + e*D + f*G; mmt[4] = d*B + e*E + f*H; mmt[5] = d*C + e*F + f*I;
+		mmt[6] = g*A + h*D + i*G; mmt[7] = g*B + h*E + i*H; mmt[8] = g*C + h*F + i*I;
+		
+		// x33 is 1
+		double scale = mmt[8];
+		if(isZero(scale, Math.abs(g*C) + Math.abs(h*F) + Math.abs(i*I)) || Double.isNaN(scale)) {
+			throw new SingularMatrixException();
+		}
+		for(int k=0;k<9;k++) {
+			mmt[k] /= scale;
+		}
+	}
+	
+	/**
+	 * adjust a matrix to a source image that is a part of the original source image.
+	 * <pre>
+	 * the part starts at (x, y) of the original source so every source position moves by (-x, -y):
+	 * +-                             -+
+	 * | x11-x*x31  x12-x*x32  x13-x*x33 |
+	 * | x21-y*x31  x22-y*x32  x23-y*x33 |
+	 * | x31        x32        x33       |
+	 * +-                             -+
+	 * </pre>
+	 * @param mmt a perspective transform matrix made by {@link #matrix(int[][],int[][]) matrix}
+	 * @param x the x position of the part in the original source
+	 * @param y the y position of the part in the original source
+	 * @return a new matrix that reads the same pixels from the part
+	 */
+	public static double[][] offsetSource(double[][] mmt, double x, double y) {
+		double[][] result = new double[3][];
+		result[0] = new double[] { mmt[0][0] - x*mmt[2][0], mmt[0][1] - x*mmt[2][1], mmt[0][2] - x*mmt[2][2] };
+		result[1] = new double[] { mmt[1][0] - y*mmt[2][0], mmt[1][1] - y*mmt[2][1], mmt[1][2] - y*mmt[2][2] };
+		result[2] = mmt[2].clone();
+		return result;
+	}
+	
+	/**
+	 * adjust a matrix to a source image that is a scaled copy of the original source image.
+	 * <pre>
+	 * every source position is multiplied by scale:
+	 * +-                                  -+
+	 * | x11*scale  x12*scale  x13*scale |
+	 * | x21*scale  x22*scale  x23*scale |
+	 * | x31        x32        x33       |
+	 * +-                                  -+
+	 * </pre>
+	 * @param mmt a perspective transform matrix made by {@link #matrix(int[][],int[][]) matrix}
+	 * @param scale the size of the scaled source relative to the original, 0.5 for a source half the size
+	 * @return a new matrix that reads the same positions from the scaled source
+	 */
+	public static double[][] scaleSource(double[][] mmt, double scale) {
+		double[][] result = new double[3][];
+		result[0] = new double[] { mmt[0][0]*scale, mmt[0][1]*scale, mmt[0][2]*scale };
+		result[1] = new double[] { mmt[1][0]*scale, mmt[1][1]*scale, mmt[1][2]*scale };
+		result[2] = mmt[2].clone();
+		return result;
+	}
+	
+	/**
+	 * write the matrix mapping the unit square corners (0,0) (1,0) (1,1) (0,1) to the 
+	 * four points in order to m.
+	 */
+	private static void squareToQuad(int[][] points, double[] m) throws SingularMatrixException {
+		double x0 = points[0][0], y0 = points[0][1], x1 = points[1][0], y1 = points[1][1],
+			   x2 = points[2][0], y2 = points[2][1], x3 = points[3][0], y3 = points[3][1];
+		double sx = x0 - x1 + x2 - x3, sy = y0 - y1 + y2 - y3;
+		double g = 0, h = 0;
+		if(sx != 0 || sy != 0) {
+			double dx1 = x1 - x2, dx2 = x3 - x2, dy1 = y1 - y2, dy2 = y3 - y2;
+			double den = dx1*dy2 - dx2*dy1;
+			if(isZero(den, Math.abs(dx1*dy2) + Math.abs(dx2*dy1))) {
+				throw new SingularMatrixException();
+			}
+			g = (sx*dy2 - dx2*sy) / den;
+			h = (dx1*sy - sx*dy1) / den;
+		}
+		m[0] = x1 - x0 + g*x1; m[1] = x3 - x0 + h*x3; m[2] = x0;
+		m[3] = y1 - y0 + g*y1; m[4] = y3 - y0 + h*y3; m[5] = y0;
+		m[6] = g;              m[7] = h;              m[8] = 1;
+	}
+	
+	/**
+	 * @return true if value is zero relative to the size of the terms it was added from
+	 */
+	private static boolean isZero(double value, double magnitude) {
+		return Math.abs(value) <= 1e-12 * magnitude;
+	}
+	
 	/**
 	 * write an image to destination from the source image with the 
 	 * perspective transform matrix and dimensions specified.
@@ -97,17 +214,433 @@ public class PerspectiveTransform {
 	 * @param destination the destination image to be built by this method
 	 */
 	public static void writeTransformed(BufferedImage source, int width, int height, double[][] mmt, BufferedImage destination) {
+		writeTransformed(source, width, height, mmt, destination, new WarpOptions());
+	}
+	
+	/**
+	 * same as {@link #writeTransformed(BufferedImage, int, int, double[][], BufferedImage)} 
+	 * with the given settings.<br>
+	 * when the parallelism is more then one the destination is split into row bands
+	 * that are built on a {@link ForkJoinPool}, every pixel is calculated the same
+	 * way so the result is identical to building it on a single thread.
+	 * @param source the original image
+	 * @param width the width of the destination image
+	 * @param height the height of the destination image
+	 * @param mmt a perspective transform matrix made by {@link #matrix(int[][],int[][]) matrix}
+	 * @param destination the destination image to be built by this method
+	 * @param options settings for building the destination image
+	 */
+	public static void writeTransformed(BufferedImage source, int width, int height, double[][] mmt, BufferedImage destination, 
+			WarpOptions options) {
+		
+		// read and write the image arrays directly, see PixelBuffer for supported layouts
+		PixelBuffer src = PixelBuffer.wrap(source), dest = PixelBuffer.wrap(destination);
+		
+		if(options.getPyramid() != null && options.getPyramid().getSource() != source) {
+			throw new IllegalArgumentException("the pyramid was built from another image");
+		}
+		
+		ForkJoinPool pool = startPool(options);
+		try {
+			writeRows(src, mmt, dest, width, 0, height, options, pool);
+		} finally {
+			stopPool(options, pool);
+		}
+	}
+	
+	/**
+	 * number of destination rows built together by 
+	 * {@link #writeTransformed(BufferedImage, int, int, double[][], ScanlineSink, WarpOptions)}.
+	 */
+	static final int STRIP_ROWS = 64;
+	
+	/**
+	 * same as {@link #writeTransformed(BufferedImage, int, int, double[][], BufferedImage, WarpOptions)}
+	 * but the destination is built in strips of rows that are passed to sink, the whole 
+	 * destination image is never held in memory. the pixels are the same as building a 
+	 * TYPE_INT_ARGB image.
+	 * @param source the original image
+	 * @param width the width of the destination image
+	 * @param height the height of the destination image
+	 * @param mmt a perspective transform matrix made by {@link #matrix(int[][],int[][]) matrix}
+	 * @param sink receives the destination rows from the top, for example {@link PngWriter}
+	 * @param options settings for building the destination image
+	 * @throws IOException if the sink fails
+	 */
+	public static void writeTransformed(BufferedImage source, int width, int height, double[][] mmt, ScanlineSink sink, 
+			WarpOptions options) throws IOException {
+		
+		PixelBuffer src = PixelBuffer.wrap(source);
+		
+		if(options.getPyramid() != null && options.getPyramid().getSource() != source) {
+			throw new IllegalArgumentException("the pyramid was built from another image");
+		}
+		
+		BufferedImage strip = new BufferedImage(width, Math.min(STRIP_ROWS, height), BufferedImage.TYPE_INT_ARGB);
+		int[] rows = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
 		
+		ForkJoinPool pool = startPool(options);
+		try {
+			for(int y0=0;y0<height;y0+=STRIP_ROWS) {
+				int y1 = Math.min(y0 + STRIP_ROWS, height);
+				writeRows(src, mmt, PixelBuffer.wrapRows(strip, y0), width, y0, y1, options, pool);
+				for(int y=0;y<y1-y0;y++) {
+					sink.writeRow(rows, y*width, width);
+				}
+			}
+		} finally {
+			stopPool(options, pool);
+		}
+	}
+	
+	/**
+	 * @return the pool to build with or null to build on the calling thread
+	 */
+	private static ForkJoinPool startPool(WarpOptions options) {
+		ForkJoinPool pool = options.getPool();
+		if(pool == null && options.getParallelism() > 1) {
+			pool = new ForkJoinPool(options.getParallelism());
+		}
+		return pool;
+	}
+	
+	/**
+	 * shut down a pool made by {@link #startPool(WarpOptions)} that is not shared.
+	 */
+	private static void stopPool(WarpOptions options, ForkJoinPool pool) {
+		if(pool != null && pool != options.getPool()) {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * build the destination rows [y0, y1) on the calling thread or split to bands on the pool.
+	 */
+	private static void writeRows(PixelBuffer src, double[][] mmt, PixelBuffer dest, int width, int y0, int y1, 
+			WarpOptions options, ForkJoinPool pool) {
+		if(pool == null) {
+			writeRegion(src, mmt, dest, 0, y0, width, y1, options);
+			return;
+		}
+		// a few bands per thread so uneven bands still keep every thread busy
+		int band = Math.max(1, (y1 - y0) / (pool.getParallelism() * 4));
+		pool.invoke(new BandTask(src, mmt, dest, width, y0, y1, band, options));
+	}
+	
+	/**
+	 * number of pixels the incremental evaluation steps before it is evaluated 
+	 * exactly again, see {@link WarpOptions#setIncremental(boolean)}.
+	 */
+	static final int ANCHOR = 32;
+	
+	/**
+	 * build the part of the destination image within [x0, x1) and [y0, y1).<br>
+	 * the destination is built row by row so both the destination writes and 
+	 * the source reads move forward in memory. bilinear images in the layouts of
+	 * {@link LayoutKernel} are built directly in the destination array.
+	 */
+	private static void writeRegion(PixelBuffer source, double[][] mmt, PixelBuffer destination, 
+			int x0, int y0, int x1, int y1, WarpOptions options) {
+		
+		int[] row = new int[x1 - x0];
+		Interpolator interpolation = options.getInterpolation();
+		ImagePyramid pyramid = options.getPyramid();
+		RowKernel kernel = null;
+		boolean exactBilinear = pyramid == null && interpolation == Interpolation.BILINEAR && !options.isIncremental();
+		if(exactBilinear && LayoutKernel.supports(source, destination)) {
+			// blend the stored channels, no packing to ARGB and back
+			for(int y=y0;y<y1;y++) {
+				LayoutKernel.writeRow((PixelBuffer.ArrayBuffer) source, mmt, (PixelBuffer.ArrayBuffer) destination, x0, x1, y);
+			}
+			return;
+		}
+		if(options.isVectorized() && interpolation == Interpolation.BILINEAR && !options.isIncremental()) {
+			kernel = VectorKernel.INSTANCE;
+		}
+		
+		for(int y=y0;y<y1;y++) {
+			if(pyramid != null) {
+				writeRowMipmap(pyramid, mmt, row, x0, x1, y, interpolation);
+			} else if(kernel != null) {
+				kernel.writeRow(source, mmt, row, x0, x1, y);
+			} else if(options.isIncremental()) {
+				writeRowIncremental(source, mmt, row, x0, x1, y, interpolation);
+			} else {
+				writeRow(source, mmt, row, x0, x1, y, interpolation);
+			}
+			destination.setRow(x0, y, row, 0, x1 - x0);
+		}
+	}
+	
+	/**
+	 * build the destination pixels (x0, y) to (x1, y) into row.<br>
+	 * the pixels whose source positions are inside the image far enough from its edges
+	 * for the whole interpolation kernel are sampled without bounds checks, see 
+	 * {@link #interiorSpan(double[][], int, int, int, double, double, double, double, int[])}.
+	 */
+	private static void writeRow(PixelBuffer source, double[][] mmt, int[] row, int x0, int x1, int y, 
+			Interpolator interpolation) {
+		
+		if(!(interpolation instanceof Interpolation)) {
+			writeSpan(source, mmt, row, x0, x0, x1, y, interpolation, false);
+			return;
+		}
+		Interpolation kernel = (Interpolation) interpolation;
+		int[] span = new int[2];
+		interiorSpan(mmt, y, x0, x1, kernel.before(), kernel.before(), 
+				source.getWidth() - kernel.after(), source.getHeight() - kernel.after(), span);
+		writeSpan(source, mmt, row, x0, x0, span[0], y, kernel, false);
+		writeSpan(source, mmt, row, x0, span[0], span[1], y, kernel, true);
+		writeSpan(source, mmt, row, x0, span[1], x1, y, kernel, false);
+	}
+	
+	/**
+	 * build the destination pixels (from, y) to (to, y) into row from (x0, y).
+	 * @param inside true if all the source positions are inside the interior of the image
+	 */
+	private static void writeSpan(PixelBuffer source, double[][] mmt, int[] row, int x0, int from, int to, int y, 
+			Interpolator interpolation, boolean inside) {
+		
+		double m00 = mmt[0][0], m01 = mmt[0][1], m02 = mmt[0][2],
+			   m10 = mmt[1][0], m11 = mmt[1][1], m12 = mmt[1][2],
+			   m20 = mmt[2][0], m21 = mmt[2][1], m22 = mmt[2][2];
         double X, Y, W;
-    	
-        for(int x=0;x<width;x++) {
-            for(int y=0;y<height;y++) {
-            	W = x*mmt[2][0] + y*mmt[2][1] + mmt[2][2];
-            	X = (x*mmt[0][0] + y*mmt[0][1] + mmt[0][2]) / W;
-            	Y = (x*mmt[1][0] + y*mmt[1][1] + mmt[1][2]) / W;
-            	destination.setRGB(x, y, Pixels.smoth(X, Y, source));
-            }
+        
+        if(inside) {
+        	Interpolation kernel = (Interpolation) interpolation;
+	        for(int x=from;x<to;x++) {
+	        	W = x*m20 + y*m21 + m22;
+	        	X = (x*m00 + y*m01 + m02) / W;
+	        	Y = (x*m10 + y*m11 + m12) / W;
+	        	row[x - x0] = kernel.sampleInside(source, X, Y);
+	        }
+	        return;
         }
+        for(int x=from;x<to;x++) {
+        	W = x*m20 + y*m21 + m22;
+        	X = (x*m00 + y*m01 + m02) / W;
+        	Y = (x*m10 + y*m11 + m12) / W;
+        	row[x - x0] = interpolation.sample(source, X, Y);
+        }
+	}
+	
+	/**
+	 * distance in pixels the interior span keeps from its bounds, much larger then the 
+	 * rounding errors of evaluating the transform.
+	 */
+	private static final double MARGIN = 1e-6;
+	
+	/**
+	 * find the part of row y within [x0, x1) whose source positions are all inside
+	 * [left, right) x [top, bottom).
+	 * <pre>
+	 * along a row the source position is a ratio of two linear functions of x:
+	 * X = (x11*x + b)/(x31*x + w), b = x12*y + x13, w = x32*y + x33
+	 * when the denominator does not change its sign along the row each bound is a 
+	 * linear condition on x, for example when it is positive:
+	 * X &gt;= left  -&gt;  (x11 - left*x31)*x + b - left*w &gt;= 0
+	 * the span is where all four conditions hold.
+	 * </pre>
+	 * the conditions are solved with a small margin and the span ends are then checked
+	 * with the same calculation the pixels are built with, so every pixel in the span is inside.
+	 * @param mmt a perspective transform matrix made by {@link #matrix(int[][],int[][]) matrix}
+	 * @param y the row
+	 * @param x0 the first x position of the row
+	 * @param x1 the x position after the last one
+	 * @param left the smallest source x allowed
+	 * @param top the smallest source y allowed
+	 * @param right the source x allowed is less then right
+	 * @param bottom the source y allowed is less then bottom
+	 * @param span an array of 2 to write the span [span[0], span[1]) to, empty when span[0] == span[1]
+	 */
+	public static void interiorSpan(double[][] mmt, int y, int x0, int x1, double left, double top, 
+			double right, double bottom, int[] span) {
+		
+		span[0] = span[1] = x0;
+		double m00 = mmt[0][0], m01 = mmt[0][1], m02 = mmt[0][2],
+			   m10 = mmt[1][0], m11 = mmt[1][1], m12 = mmt[1][2],
+			   m20 = mmt[2][0], m21 = mmt[2][1], m22 = mmt[2][2];
+		double bx = y*m01 + m02, by = y*m11 + m12, bw = y*m21 + m22;
+		double w0 = x0*m20 + bw, w1 = (x1 - 1)*m20 + bw;
+		double sign;
+		if(w0 > 0 && w1 > 0) {
+			sign = 1;
+		} else if(w0 < 0 && w1 < 0) {
+			sign = -1;
+		} else {
+			return;
+		}
+		
+		// [from, to] the x values where all the conditions hold
+		double[] range = { x0, x1 - 1 };
+		if(!(condition(sign, m00, bx, left + MARGIN, m20, bw, range) 
+				&& condition(-sign, m00, bx, right - MARGIN, m20, bw, range)
+				&& condition(sign, m10, by, top + MARGIN, m20, bw, range)
+				&& condition(-sign, m10, by, bottom - MARGIN, m20, bw, range))) {
+			return;
+		}
+		int from = (int) Math.ceil(range[0]), to = (int) Math.floor(range[1]) + 1;
+		
+		while(from < to && !inside(mmt, from, y, left, top, right, bottom)) {
+			from++;
+		}
+		while(from < to && !inside(mmt, to - 1, y, left, top, right, bottom)) {
+			to--;
+		}
+		if(from < to) {
+			span[0] = from;
+			span[1] = to;
+		}
+	}
+	
+	/**
+	 * narrow range to where sign*(a*x + b - bound*(c*x + d)) &gt;= 0 holds.
+	 * @return false if the range is empty
+	 */
+	private static boolean condition(double sign, double a, double b, double bound, double c, double d, double[] range) {
+		double alpha = sign*(a - bound*c), beta = sign*(b - bound*d);
+		if(alpha > 0) {
+			range[0] = Math.max(range[0], -beta / alpha);
+		} else if(alpha < 0) {
+			range[1] = Math.min(range[1], -beta / alpha);
+		} else if(!(beta >= 0)) {
+			return false;
+		}
+		return range[0] <= range[1];
+	}
+	
+	/**
+	 * @return true if the source position of the destination pixel (x, y) is inside [left, right) x [top, bottom)
+	 */
+	private static boolean inside(double[][] mmt, int x, int y, double left, double top, double right, double bottom) {
+		double W = x*mmt[2][0] + y*mmt[2][1] + mmt[2][2];
+		double X = (x*mmt[0][0] + y*mmt[0][1] + mmt[0][2]) / W;
+		double Y = (x*mmt[1][0] + y*mmt[1][1] + mmt[1][2]) / W;
+		return X >= left && X < right && Y >= top && Y < bottom;
+	}
+	
+	/**
+	 * same as {@link #writeRow(PixelBuffer, double[][], int[], int, int, int, Interpolator)} but along
+	 * the row the numerators and the denominator are advanced by their constant step
+	 * instead of being evaluated, every {@link #ANCHOR} pixels (counted from x = 0) 
+	 * they are evaluated exactly again so the rounding errors do not build up.
+	 */
+	private static void writeRowIncremental(PixelBuffer source, double[][] mmt, int[] row, int x0, int x1, int y, 
+			Interpolator interpolation) {
+		
+		double m00 = mmt[0][0], m01 = mmt[0][1], m02 = mmt[0][2],
+			   m10 = mmt[1][0], m11 = mmt[1][1], m12 = mmt[1][2],
+			   m20 = mmt[2][0], m21 = mmt[2][1], m22 = mmt[2][2];
+		// the part of the row that does not change along it
+		double cx = y*m01 + m02, cy = y*m11 + m12, cw = y*m21 + m22;
+		double NX = 0, NY = 0, W = 0;
+		
+		// the incremental positions are within 1e-9 of the exact ones, far less then the span margin
+		Interpolation kernel = interpolation instanceof Interpolation ? (Interpolation) interpolation : null;
+		int[] span = new int[2];
+		if(kernel != null) {
+			interiorSpan(mmt, y, x0, x1, kernel.before(), kernel.before(), 
+					source.getWidth() - kernel.after(), source.getHeight() - kernel.after(), span);
+		}
+		
+		for(int x=x0;x<x1;x++) {
+			if(x == x0 || x % ANCHOR == 0) {
+				W = x*m20 + cw;
+				NX = x*m00 + cx;
+				NY = x*m10 + cy;
+			} else {
+				W += m20;
+				NX += m00;
+				NY += m10;
+			}
+			if(x >= span[0] && x < span[1]) {
+				row[x - x0] = kernel.sampleInside(source, NX / W, NY / W);
+			} else {
+				row[x - x0] = interpolation.sample(source, NX / W, NY / W);
+			}
+		}
+	}
+	
+	/**
+	 * same as {@link #writeRow(PixelBuffer, double[][], int[], int, int, int, Interpolator)} but
+	 * every pixel is sampled from the pyramid levels that match the number of source pixels 
+	 * it covers.
+	 * <pre>
+	 * the scale is the longer side of the source area one destination pixel covers,
+	 * the partial derivatives of the transform at (x, y):
+	 * dX/dx = (x11 - X*x31)/w   dX/dy = (x12 - X*x32)/w
+	 * dY/dx = (x21 - Y*x31)/w   dY/dy = (x22 - Y*x32)/w
+	 * </pre>
+	 */
+	private static void writeRowMipmap(ImagePyramid pyramid, double[][] mmt, int[] row, int x0, int x1, int y, 
+			Interpolator interpolation) {
+		
+		double m00 = mmt[0][0], m01 = mmt[0][1], m02 = mmt[0][2],
+			   m10 = mmt[1][0], m11 = mmt[1][1], m12 = mmt[1][2],
+			   m20 = mmt[2][0], m21 = mmt[2][1], m22 = mmt[2][2];
+        double X, Y, W;
+        
+        for(int x=x0;x<x1;x++) {
+        	W = x*m20 + y*m21 + m22;
+        	X = (x*m00 + y*m01 + m02) / W;
+        	Y = (x*m10 + y*m11 + m12) / W;
+        	double Xx = (m00 - X*m20) / W, Yx = (m10 - Y*m20) / W,
+        		   Xy = (m01 - X*m21) / W, Yy = (m11 - Y*m21) / W;
+        	double scale = Math.sqrt(Math.max(Xx*Xx + Yx*Yx, Xy*Xy + Yy*Yy));
+        	row[x - x0] = pyramid.sample(interpolation, X, Y, scale);
+        }
+	}
+	
+	/**
+	 * holds the vector api kernel, null when the jdk.incubator.vector module is 
+	 * not available or the kernel was not built.
+	 */
+	private static class VectorKernel {
+		
+		static final RowKernel INSTANCE = load();
+		
+		private static RowKernel load() {
+			try {
+				return (RowKernel) Class.forName("util.vector.VectorWarpKernel").getDeclaredConstructor().newInstance();
+			} catch(Throwable e) {
+				// class or module missing, use the scalar kernel
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * splits the destination rows in half until a band is small enough to build.
+	 */
+	private static class BandTask extends RecursiveAction {
+		
+		private final PixelBuffer source, destination;
+		private final double[][] mmt;
+		private final int width, y0, y1, band;
+		private final WarpOptions options;
+		
+		BandTask(PixelBuffer source, double[][] mmt, PixelBuffer destination, int width, int y0, int y1, int band, 
+				WarpOptions options) {
+			this.source = source;
+			this.mmt = mmt;
+			this.destination = destination;
+			this.width = width;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.band = band;
+			this.options = options;
+		}
+
+		@Override
+		protected void compute() {
+			if(y1 - y0 <= band) {
+				writeRegion(source, mmt, destination, 0, y0, width, y1, options);
+				return;
+			}
+			int mid = (y0 + y1) >>> 1;
+			invokeAll(new BandTask(source, mmt, destination, width, y0, mid, band, options),
+					new BandTask(source, mmt, destination, width, mid, y1, band, options));
+		}
 	}
 
 	/** 
@@ -163,4 +696,29 @@ public class PerspectiveTransform {
 		return new int[][]{{0, 0}, {width, 0}, 
 							{width, height}, {0, height}};
 	}
+	
+	/**
+	 * shrink a square made by {@link #maximizeSquareTranslation(int[][])} so its longer side is 
+	 * at most maxDimension, keeping its proportions.
+	 * <pre>
+	 * example:
+	 * A(0, 0) B(722, 0) C(722, 590) D(0, 590) with maxDimension 361
+	 * will translate to:
+	 * A(0, 0) B(361, 0) C(361, 295) D(0, 295) 
+	 * </pre>
+	 * @param square a square starting at (0, 0) ordered clockwise
+	 * @param maxDimension the longest side allowed
+	 * @return the same square if it is small enough, otherwise a new smaller square
+	 */
+	public static int[][] fitSquareTranslation(int[][] square, int maxDimension) {
+		int width = square[2][0], height = square[2][1];
+		if(width <= maxDimension && height <= maxDimension) {
+			return square;
+		}
+		double scale = (double) maxDimension / Math.max(width, height);
+		width = Math.max(1, (int) Math.round(width * scale));
+		height = Math.max(1, (int) Math.round(height * scale));
+		return new int[][]{{0, 0}, {width, 0}, 
+							{width, height}, {0, height}};
+	}
 }
@@ -0,0 +1,529 @@
+package util;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+
+/**
+ * direct access to the pixels of an image as packed ARGB values.<br>
+ * reading and writing the backing arrays of the image skip the color model
+ * conversion that {@link BufferedImage#getRGB(int, int) getRGB} and
+ * {@link BufferedImage#setRGB(int, int, int) setRGB} go through for every pixel.
+ * <pre>
+ * supported layouts:
+ * TYPE_INT_ARGB    int  0xAARRGGBB
+ * TYPE_INT_RGB     int  0x00RRGGBB (read as opaque)
+ * TYPE_3BYTE_BGR   byte B G R     (read as opaque)
+ * TYPE_4BYTE_ABGR  byte A B G R
+ * TYPE_BYTE_GRAY   byte Y         (read as R=G=B=Y, opaque)
+ * 16 bit gray      short Y        (read as R=G=B=Y scaled to 8 bits, opaque)
+ * 16 bit RGB and RGBA short       (converted through getRGB/setRGB to 8 bits)
+ * </pre>
+ * any other image is accessed through getRGB/setRGB, the values are the same
+ * in both cases, except for gray. getRGB treats a gray image as linear and converts it
+ * to sRGB, which lightens it, the gray layouts copy the stored value instead so a gray
+ * scan has the same gray levels in every destination layout. a pixel stored to a gray
+ * layout keeps its luma, (77R + 150G + 29B) / 256, which is R when R=G=B.<br>
+ * the layout and the backing array of the layouts other then getRGB/setRGB are also available,
+ * through {@link ArrayBuffer}, to the kernels that blend the stored channels directly, see {@link LayoutKernel}.
+ */
+public abstract class PixelBuffer {
+
+	/**
+	 * the layout of the backing array, the number of array elements of a pixel and
+	 * the number of its channels.
+	 */
+	enum Layout {
+		INT_ARGB(1, 4), INT_RGB(1, 3), BYTE_BGR(3, 3), BYTE_ABGR(4, 4), BYTE_GRAY(1, 1), 
+		USHORT_GRAY(1, 1), USHORT_RGB(3, 3), USHORT_RGBA(4, 4), OTHER(0, 0);
+
+		final int pixelStride, channels;
+
+		Layout(int pixelStride, int channels) {
+			this.pixelStride = pixelStride;
+			this.channels = channels;
+		}
+	}
+
+	protected final BufferedImage image;
+	protected final int width, height;
+
+	protected PixelBuffer(BufferedImage image) {
+		this.image = image;
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+	}
+
+	/**
+	 * wrap an image with the fastest accessor available for its layout.
+	 * @param image an image
+	 * @return pixel accessor for the image
+	 */
+	public static PixelBuffer wrap(BufferedImage image) {
+		WritableRaster raster = image.getRaster();
+		SampleModel sm = raster.getSampleModel();
+		DataBuffer db = raster.getDataBuffer();
+		int tx = raster.getSampleModelTranslateX(), ty = raster.getSampleModelTranslateY();
+		switch(image.getType()) {
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_RGB:
+			if(sm instanceof SinglePixelPackedSampleModel && db instanceof DataBufferInt && db.getNumBanks() == 1) {
+				int stride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+				int base = db.getOffset() - ty*stride - tx;
+				int[] data = ((DataBufferInt) db).getData();
+				if(image.getType() == BufferedImage.TYPE_INT_ARGB) {
+					return new IntARGB(image, data, base, stride);
+				}
+				return new IntRGB(image, data, base, stride);
+			}
+			break;
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+			if(sm instanceof PixelInterleavedSampleModel && db instanceof DataBufferByte && db.getNumBanks() == 1) {
+				PixelInterleavedSampleModel pism = (PixelInterleavedSampleModel) sm;
+				int stride = pism.getScanlineStride(), pixelStride = pism.getPixelStride();
+				int base = db.getOffset() - ty*stride - tx*pixelStride;
+				byte[] data = ((DataBufferByte) db).getData();
+				int[] offsets = pism.getBandOffsets();
+				if(image.getType() == BufferedImage.TYPE_3BYTE_BGR
+						&& pixelStride == 3 && offsets[0] == 2 && offsets[1] == 1 && offsets[2] == 0) {
+					return new ByteBGR(image, data, base, stride);
+				}
+				if(image.getType() == BufferedImage.TYPE_4BYTE_ABGR
+						&& pixelStride == 4 && offsets[0] == 3 && offsets[1] == 2 && offsets[2] == 1 && offsets[3] == 0) {
+					return new ByteABGR(image, data, base, stride);
+				}
+			}
+			break;
+		case BufferedImage.TYPE_BYTE_GRAY:
+			if(sm instanceof PixelInterleavedSampleModel && db instanceof DataBufferByte && db.getNumBanks() == 1
+					&& ((PixelInterleavedSampleModel) sm).getPixelStride() == 1) {
+				int stride = ((PixelInterleavedSampleModel) sm).getScanlineStride();
+				return new ByteGray(image, ((DataBufferByte) db).getData(), db.getOffset() - ty*stride - tx, stride);
+			}
+			break;
+		}
+		if(db instanceof DataBufferUShort && db.getNumBanks() == 1 && sm instanceof PixelInterleavedSampleModel) {
+			// 16 bit images are read by ImageIO as TYPE_USHORT_GRAY or as a custom type
+			PixelInterleavedSampleModel pism = (PixelInterleavedSampleModel) sm;
+			int stride = pism.getScanlineStride(), pixelStride = pism.getPixelStride();
+			int[] offsets = pism.getBandOffsets();
+			boolean ordered = pixelStride == offsets.length;
+			for(int i=0;i<offsets.length;i++) {
+				ordered &= offsets[i] == i;
+			}
+			Layout layout = null;
+			if(ordered && offsets.length == 1) {
+				layout = Layout.USHORT_GRAY;
+			} else if(ordered && offsets.length == 3 && !image.getColorModel().hasAlpha()) {
+				layout = Layout.USHORT_RGB;
+			} else if(ordered && offsets.length == 4 && image.getColorModel().hasAlpha() 
+					&& !image.getColorModel().isAlphaPremultiplied()) {
+				layout = Layout.USHORT_RGBA;
+			}
+			if(layout != null) {
+				int base = db.getOffset() - ty*stride - tx*pixelStride;
+				return new UShort(image, ((DataBufferUShort) db).getData(), base, stride, layout);
+			}
+		}
+		return new Generic(image);
+	}
+
+	/**
+	 * wrap a TYPE_INT_ARGB image that holds the rows from y0 of a taller image, the rows 
+	 * are accessed with the taller image row numbers.
+	 * @param image a TYPE_INT_ARGB image
+	 * @param y0 the taller image row of the first image row
+	 * @return pixel accessor for the image
+	 */
+	static PixelBuffer wrapRows(BufferedImage image, int y0) {
+		SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) image.getRaster().getSampleModel();
+		DataBufferInt db = (DataBufferInt) image.getRaster().getDataBuffer();
+		int stride = sm.getScanlineStride();
+		return new IntARGB(image, db.getData(), db.getOffset() - y0*stride, stride);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	/**
+	 * @return the layout of the backing array, {@link Layout#OTHER} if it is accessed through getRGB/setRGB
+	 */
+	Layout getLayout() {
+		return Layout.OTHER;
+	}
+
+	/**
+	 * @return the backing array, an int[] or a byte[], null for {@link Layout#OTHER}
+	 */
+	Object getData() {
+		return null;
+	}
+
+	/**
+	 * @param x the x position
+	 * @param y the y position
+	 * @return the pixel at (x, y) as packed ARGB, same as {@link BufferedImage#getRGB(int, int)}
+	 */
+	public abstract int getARGB(int x, int y);
+
+	/**
+	 * @param x the x position
+	 * @param y the y position
+	 * @param argb the pixel as packed ARGB, stored the same as {@link BufferedImage#setRGB(int, int, int)}
+	 */
+	public abstract void setARGB(int x, int y, int argb);
+
+	/**
+	 * store a run of packed ARGB pixels in a row.
+	 * @param x the first x position
+	 * @param y the row
+	 * @param argb the pixels
+	 * @param offset position of the first pixel in argb
+	 * @param length number of pixels to store
+	 */
+	public void setRow(int x, int y, int[] argb, int offset, int length) {
+		for(int i=0;i<length;i++) {
+			setARGB(x+i, y, argb[offset+i]);
+		}
+	}
+
+	/**
+	 * a buffer backed by an array in one of the layouts other then {@link Layout#OTHER}, the
+	 * kernels that blend the stored channels address its pixels by their array positions.
+	 */
+	abstract static class ArrayBuffer extends PixelBuffer {
+
+		ArrayBuffer(BufferedImage image) {
+			super(image);
+		}
+
+		@Override
+		abstract Layout getLayout();
+
+		@Override
+		abstract Object getData();
+
+		/**
+		 * @return the array position of the first channel of the pixel (x, y)
+		 */
+		abstract int offset(int x, int y);
+	}
+
+	private static final class IntARGB extends ArrayBuffer {
+		private final int[] data;
+		private final int base, stride;
+
+		IntARGB(BufferedImage image, int[] data, int base, int stride) {
+			super(image);
+			this.data = data;
+			this.base = base;
+			this.stride = stride;
+		}
+
+		@Override
+		Layout getLayout() {
+			return Layout.INT_ARGB;
+		}
+
+		@Override
+		Object getData() {
+			return data;
+		}
+
+		@Override
+		int offset(int x, int y) {
+			return base + y*stride + x;
+		}
+
+		@Override
+		public int getARGB(int x, int y) {
+			return data[base + y*stride + x];
+		}
+
+		@Override
+		public void setARGB(int x, int y, int argb) {
+			data[base + y*stride + x] = argb;
+		}
+
+		@Override
+		public void setRow(int x, int y, int[] argb, int offset, int length) {
+			System.arraycopy(argb, offset, data, base + y*stride + x, length);
+		}
+	}
+
+	private static final class IntRGB extends ArrayBuffer {
+		private final int[] data;
+		private final int base, stride;
+
+		IntRGB(BufferedImage image, int[] data, int base, int stride) {
+			super(image);
+			this.data = data;
+			this.base = base;
+			this.stride = stride;
+		}
+
+		@Override
+		Layout getLayout() {
+			return Layout.INT_RGB;
+		}
+
+		@Override
+		Object getData() {
+			return data;
+		}
+
+		@Override
+		int offset(int x, int y) {
+			return base + y*stride + x;
+		}
+
+		@Override
+		public int getARGB(int x, int y) {
+			return 0xFF000000 | data[base + y*stride + x];
+		}
+
+		@Override
+		public void setARGB(int x, int y, int argb) {
+			data[base + y*stride + x] = argb & 0xFFFFFF;
+		}
+
+		@Override
+		public void setRow(int x, int y, int[] argb, int offset, int length) {
+			int p = base + y*stride + x;
+			for(int i=0;i<length;i++) {
+				data[p+i] = argb[offset+i] & 0xFFFFFF;
+			}
+		}
+	}
+
+	private static final class ByteBGR extends ArrayBuffer {
+		private final byte[] data;
+		private final int base, stride;
+
+		ByteBGR(BufferedImage image, byte[] data, int base, int stride) {
+			super(image);
+			this.data = data;
+			this.base = base;
+			this.stride = stride;
+		}
+
+		@Override
+		Layout getLayout() {
+			return Layout.BYTE_BGR;
+		}
+
+		@Override
+		Object getData() {
+			return data;
+		}
+
+		@Override
+		int offset(int x, int y) {
+			return base + y*stride + x*3;
+		}
+
+		@Override
+		public int getARGB(int x, int y) {
+			int p = base + y*stride + x*3;
+			return 0xFF000000 | ((data[p+2] & 0xFF) << 16) | ((data[p+1] & 0xFF) << 8) | (data[p] & 0xFF);
+		}
+
+		@Override
+		public void setARGB(int x, int y, int argb) {
+			int p = base + y*stride + x*3;
+			data[p] = (byte) argb;
+			data[p+1] = (byte) (argb >> 8);
+			data[p+2] = (byte) (argb >> 16);
+		}
+
+		@Override
+		public void setRow(int x, int y, int[] argb, int offset, int length) {
+			int p = base + y*stride + x*3;
+			for(int i=0;i<length;i++, p+=3) {
+				int c = argb[offset+i];
+				data[p] = (byte) c;
+				data[p+1] = (byte) (c >> 8);
+				data[p+2] = (byte) (c >> 16);
+			}
+		}
+	}
+
+	private static final class ByteABGR extends ArrayBuffer {
+		private final byte[] data;
+		private final int base, stride;
+
+		ByteABGR(BufferedImage image, byte[] data, int base, int stride) {
+			super(image);
+			this.data = data;
+			this.base = base;
+			this.stride = stride;
+		}
+
+		@Override
+		Layout getLayout() {
+			return Layout.BYTE_ABGR;
+		}
+
+		@Override
+		Object getData() {
+			return data;
+		}
+
+		@Override
+		int offset(int x, int y) {
+			return base + y*stride + x*4;
+		}
+
+		@Override
+		public int getARGB(int x, int y) {
+			int p = base + y*stride + x*4;
+			return ((data[p] & 0xFF) << 24) | ((data[p+3] & 0xFF) << 16) | ((data[p+2] & 0xFF) << 8) | (data[p+1] & 0xFF);
+		}
+
+		@Override
+		public void setARGB(int x, int y, int argb) {
+			int p = base + y*stride + x*4;
+			data[p] = (byte) (argb >>> 24);
+			data[p+1] = (byte) argb;
+			data[p+2] = (byte) (argb >> 8);
+			data[p+3] = (byte) (argb >> 16);
+		}
+
+		@Override
+		public void setRow(int x, int y, int[] argb, int offset, int length) {
+			int p = base + y*stride + x*4;
+			for(int i=0;i<length;i++, p+=4) {
+				int c = argb[offset+i];
+				data[p] = (byte) (c >>> 24);
+				data[p+1] = (byte) c;
+				data[p+2] = (byte) (c >> 8);
+				data[p+3] = (byte) (c >> 16);
+			}
+		}
+	}
+
+	private static final class ByteGray extends ArrayBuffer {
+		private final byte[] data;
+		private final int base, stride;
+
+		ByteGray(BufferedImage image, byte[] data, int base, int stride) {
+			super(image);
+			this.data = data;
+			this.base = base;
+			this.stride = stride;
+		}
+
+		@Override
+		Layout getLayout() {
+			return Layout.BYTE_GRAY;
+		}
+
+		@Override
+		Object getData() {
+			return data;
+		}
+
+		@Override
+		int offset(int x, int y) {
+			return base + y*stride + x;
+		}
+
+		// the stored gray, not converted by the color model
+
+		@Override
+		public int getARGB(int x, int y) {
+			return 0xff000000 | (data[base + y*stride + x] & 0xff) * 0x010101;
+		}
+
+		@Override
+		public void setARGB(int x, int y, int argb) {
+			data[base + y*stride + x] = (byte) luma(argb);
+		}
+	}
+
+	private static final class UShort extends ArrayBuffer {
+		private final short[] data;
+		private final int base, stride;
+		private final Layout layout;
+
+		UShort(BufferedImage image, short[] data, int base, int stride, Layout layout) {
+			super(image);
+			this.data = data;
+			this.base = base;
+			this.stride = stride;
+			this.layout = layout;
+		}
+
+		@Override
+		Layout getLayout() {
+			return layout;
+		}
+
+		@Override
+		Object getData() {
+			return data;
+		}
+
+		@Override
+		int offset(int x, int y) {
+			return base + y*stride + x*layout.pixelStride;
+		}
+
+		@Override
+		public int getARGB(int x, int y) {
+			if(layout == Layout.USHORT_GRAY) {
+				return 0xff000000 | (((data[base + y*stride + x] & 0xffff) * 255 + 32767) / 65535) * 0x010101;
+			}
+			return image.getRGB(x, y);
+		}
+
+		@Override
+		public void setARGB(int x, int y, int argb) {
+			if(layout == Layout.USHORT_GRAY) {
+				data[base + y*stride + x] = (short) (luma(argb) * 257);
+				return;
+			}
+			image.setRGB(x, y, argb);
+		}
+	}
+
+	/**
+	 * @return the gray of a packed ARGB pixel, its red when red, green and blue are equal
+	 */
+	private static int luma(int argb) {
+		return (((argb >> 16) & 0xff) * 77 + ((argb >> 8) & 0xff) * 150 + (argb & 0xff) * 29) >> 8;
+	}
+
+	private static final class Generic extends PixelBuffer {
+
+		Generic(BufferedImage image) {
+			super(image);
+		}
+
+		@Override
+		public int getARGB(int x, int y) {
+			return image.getRGB(x, y);
+		}
+
+		@Override
+		public void setARGB(int x, int y, int argb) {
+			image.setRGB(x, y, argb);
+		}
+	}
+}
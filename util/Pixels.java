@@ -29,7 +29,6 @@ public class Pixels {
 	 */
 	public static int smoth(double x, double y, BufferedImage image) {
 		double dx = Math.abs(x) -  Math.abs((int)x), dy = Math.abs(y) -  Math.abs((int)y);
-		double tl = (1-dx)*(1-dy), tr = dx*(1-dy), bl = (1-dx)*dy, br = dx*dy;
 		int X = (int)x, Y = (int)y;
 		
 		int p11, p12, p21, p22;
@@ -49,6 +48,65 @@ public class Pixels {
 			return 0;
 		}
 		
+		return blend(p11, p12, p21, p22, dx, dy);
+	}
+	
+	/**
+	 * same as {@link #smoth(double, double, BufferedImage)} but reads the pixels
+	 * directly from the image backing arrays.
+	 * @param x the x floating point value
+	 * @param y the y floating point value
+	 * @param image an image
+	 * @returns calculated pixel value
+	 */
+	public static int smoth(double x, double y, PixelBuffer image) {
+		double dx = Math.abs(x) -  Math.abs((int)x), dy = Math.abs(y) -  Math.abs((int)y);
+		int X = (int)x, Y = (int)y;
+		int width = image.getWidth(), height = image.getHeight();
+		
+		int p11, p12, p21, p22;
+		p11 = p12 = p21 = p22 = 0;
+		if(X >= 0 && X < width && Y >= 0 && Y < height) {
+			p11 = image.getARGB(X, Y);
+			if(X+1 < width) {
+				p12 = image.getARGB(X+1, Y);
+			}
+			if(Y+1 < height) {
+				p21 = image.getARGB(X, Y+1);
+			}
+			if(X+1 < width && Y+1 < height) {
+				p22 = image.getARGB(X+1, Y+1);
+			}
+		} else {
+			return 0;
+		}
+		
+		return blend(p11, p12, p21, p22, dx, dy);
+	}
+	
+	/**
+	 * same as {@link #smoth(double, double, PixelBuffer)} for a position where
+	 * 0 &lt;= x &lt; width-1 and 0 &lt;= y &lt; height-1, all four pixels are read without bounds checks.
+	 */
+	static int smothInside(double x, double y, PixelBuffer image) {
+		int X = (int)x, Y = (int)y;
+		double dx = x - X, dy = y - Y;
+		return blend(image.getARGB(X, Y), image.getARGB(X+1, Y), image.getARGB(X, Y+1), image.getARGB(X+1, Y+1), dx, dy);
+	}
+	
+	/**
+	 * proportionally average four neighbor pixels.
+	 * @param p11 top left pixel
+	 * @param p12 top right pixel
+	 * @param p21 bottom left pixel
+	 * @param p22 bottom right pixel
+	 * @param dx distance from the left pixels
+	 * @param dy distance from the top pixels
+	 * @return the averaged pixel
+	 */
+	private static int blend(int p11, int p12, int p21, int p22, double dx, double dy) {
+		double tl = (1-dx)*(1-dy), tr = dx*(1-dy), bl = (1-dx)*dy, br = dx*dy;
+		
 		int blue = (int) ((p11 & 0xFF)*tl + (p12 & 0xFF)*tr + (p21 & 0xFF)*bl + (p22 & 0xFF)*br),
 			green = (int) (((p11>>8) & 0xFF)*tl + ((p12>>8) & 0xFF)*tr + ((p21>>8) & 0xFF)*bl + ((p22>>8) & 0xFF)*br),
 			red = (int) (((p11>>16) & 0xFF)*tl + ((p12>>16) & 0xFF)*tr + ((p21>>16) & 0xFF)*bl + ((p22>>16) & 0xFF)*br),
@@ -58,4 +116,96 @@ public class Pixels {
 		
 		return result;
 	}
+	
+	/**
+	 * number of bits the fractional part of a position is quantized to in 
+	 * {@link #smothFixed(double, double, PixelBuffer)}.<br>
+	 * a weight is the product of two fractions (24 bits) and four weighted 8 bit
+	 * channels must add up within 32 bits.
+	 */
+	public static final int FRACTION_BITS = 12;
+	
+	private static final int ONE = 1 << FRACTION_BITS;
+	
+	/**
+	 * same as {@link #smoth(double, double, PixelBuffer)} using integer arithmetic.<br>
+	 * the fractions are quantized to {@link #FRACTION_BITS} bits and every two channels
+	 * are blended together in one long, each channel in its own 32 bits.
+	 * <pre>
+	 * a pixel 0xAARRGGBB is spread to
+	 * 0x000000RR_000000BB and 0x000000AA_000000GG
+	 * blend = p11*w11 + p12*w12 + p21*w21 + p22*w22 (w11+w12+w21+w22 = 2^24)
+	 * every channel is the top 8 bits of its 32 bits.
+	 * </pre>
+	 * a channel differs from the double calculation by one at most.<br>
+	 * the fractions are measured from the pixel to the left(or above) the position
+	 * also for negative positions, so a position between -1 and 0 is outside the image
+	 * where the double calculation reads it from the first pixel.
+	 * @param x the x floating point value
+	 * @param y the y floating point value
+	 * @param image an image
+	 * @returns calculated pixel value
+	 */
+	public static int smothFixed(double x, double y, PixelBuffer image) {
+		int X = (int)x, Y = (int)y;
+		if(x < X) X--;
+		if(y < Y) Y--;
+		int width = image.getWidth(), height = image.getHeight();
+		if(X < 0 || X >= width || Y < 0 || Y >= height) {
+			return 0;
+		}
+		
+		int fx = (int) ((x - X) * ONE), fy = (int) ((y - Y) * ONE);
+		
+		int p11, p12, p21, p22;
+		p11 = image.getARGB(X, Y);
+		p12 = p21 = p22 = 0;
+		if(X+1 < width) {
+			p12 = image.getARGB(X+1, Y);
+		}
+		if(Y+1 < height) {
+			p21 = image.getARGB(X, Y+1);
+			if(X+1 < width) {
+				p22 = image.getARGB(X+1, Y+1);
+			}
+		}
+		
+		return blendFixed(p11, p12, p21, p22, fx, fy);
+	}
+	
+	/**
+	 * same as {@link #smothFixed(double, double, PixelBuffer)} for a position where
+	 * 0 &lt;= x &lt; width-1 and 0 &lt;= y &lt; height-1, all four pixels are read without bounds checks.
+	 */
+	static int smothFixedInside(double x, double y, PixelBuffer image) {
+		int X = (int)x, Y = (int)y;
+		int fx = (int) ((x - X) * ONE), fy = (int) ((y - Y) * ONE);
+		return blendFixed(image.getARGB(X, Y), image.getARGB(X+1, Y), image.getARGB(X, Y+1), image.getARGB(X+1, Y+1), fx, fy);
+	}
+	
+	/**
+	 * proportionally average four neighbor pixels with integer arithmetic.
+	 * @param p11 top left pixel
+	 * @param p12 top right pixel
+	 * @param p21 bottom left pixel
+	 * @param p22 bottom right pixel
+	 * @param fx distance from the left pixels in 1/2^{@link #FRACTION_BITS} units
+	 * @param fy distance from the top pixels in 1/2^{@link #FRACTION_BITS} units
+	 * @return the averaged pixel
+	 */
+	static int blendFixed(int p11, int p12, int p21, int p22, int fx, int fy) {
+		long w11 = (ONE-fx)*(ONE-fy), w12 = fx*(ONE-fy), w21 = (ONE-fx)*fy, w22 = fx*fy;
+		
+		long rb = (p11 & 0xFFL | (p11 & 0xFF0000L) << 16) * w11
+				+ (p12 & 0xFFL | (p12 & 0xFF0000L) << 16) * w12
+				+ (p21 & 0xFFL | (p21 & 0xFF0000L) << 16) * w21
+				+ (p22 & 0xFFL | (p22 & 0xFF0000L) << 16) * w22;
+		long ag = ((p11 >> 8) & 0xFFL | (long)(p11 >>> 24) << 32) * w11
+				+ ((p12 >> 8) & 0xFFL | (long)(p12 >>> 24) << 32) * w12
+				+ ((p21 >> 8) & 0xFFL | (long)(p21 >>> 24) << 32) * w21
+				+ ((p22 >> 8) & 0xFFL | (long)(p22 >>> 24) << 32) * w22;
+		
+		return (int) ((ag >>> 32) & 0xFF000000L | (ag >>> 16) & 0xFF00L 
+				| (rb >>> 40) & 0xFF0000L | (rb >>> 24) & 0xFFL);
+	}
 }
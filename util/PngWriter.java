@@ -0,0 +1,584 @@
+package util;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * a PNG encoder that takes the image row after row, a {@link ScanlineSink} for
+ * {@link PerspectiveTransform#writeTransformed(java.awt.image.BufferedImage, int, int, double[][], ScanlineSink, WarpOptions) writeTransformed}
+ * and {@link StreamingWarp}.<br>
+ * the rows are filtered, compressed and written as IDAT chunks on threads of the writer
+ * while the next rows are built, the whole image is never held in memory.
+ * <pre>
+ * example:
+ * try(PngWriter png = new PngWriter(new FileOutputStream(file), width, height, true)) {
+ *     PerspectiveTransform.writeTransformed(source, width, height, mmt, png, options);
+ * }
+ * </pre>
+ * the image is 8 bits per channel RGBA, or RGB without alpha. by default every row is filtered
+ * with the filter that gives the smallest sum of absolute differences, same as ImageIO.<br>
+ * the compressed data is made of independent blocks like pigz makes them, every block is
+ * compressed with the 32K before it as its dictionary and ends on a byte boundary, so
+ * blocks are compressed in parallel and joined in order into one zlib stream.
+ */
+public class PngWriter implements ScanlineSink, Closeable {
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+	/**
+	 * number of rows passed to the encoding thread together.
+	 */
+	private static final int BATCH_ROWS = 16;
+
+	/**
+	 * largest IDAT chunk written.
+	 */
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	/**
+	 * number of filtered bytes compressed together, rounded to whole rows.
+	 */
+	private static final int BLOCK_SIZE = 1 << 18;
+
+	/**
+	 * the deflate window, the length of the dictionary of a block.
+	 */
+	private static final int WINDOW = 1 << 15;
+
+	/**
+	 * the way every row is filtered before it is compressed.
+	 * <pre>
+	 * NONE      the bytes as they are
+	 * SUB       difference from the pixel to the left
+	 * UP        difference from the pixel above
+	 * AVERAGE   difference from the average of the left and the above pixels
+	 * PAETH     difference from the left, above or above left pixel that is closest to their gradient
+	 * ADAPTIVE  every row with the filter that gives the smallest sum of absolute differences
+	 * </pre>
+	 */
+	public enum Filter {
+		NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+	}
+
+	private final OutputStream out;
+	private final int width, height, channels;
+	private final int level, threads;
+	private final Filter filter;
+
+	private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(4);
+	private final Thread encoder;
+	private volatile IOException failure = null;
+
+	private byte[] batch;
+	private int batchRows = 0, rows = 0;
+
+	/**
+	 * write the PNG header and start encoding.
+	 * @param out the stream to write the PNG to, closed by {@link #close()}
+	 * @param width the image width
+	 * @param height the image height
+	 * @param alpha true to keep the alpha of the pixels, false for an opaque RGB image
+	 * @throws IOException if the header cannot be written
+	 */
+	public PngWriter(OutputStream out, int width, int height, boolean alpha) throws IOException {
+		this(out, width, height, alpha, 4, Filter.ADAPTIVE, 1);
+	}
+
+	/**
+	 * same as {@link #PngWriter(OutputStream, int, int, boolean)} with compression settings.<br>
+	 * the filtered rows are compressed in blocks of 256K, with more then one thread the blocks
+	 * are compressed at the same time. the PNG is the same for any number of threads.
+	 * @param level compression level from 0(none) to 9(smallest), 4 by default, from 6 the
+	 * 			filtered rows are compressed with {@link Deflater#FILTERED}
+	 * @param filter the way rows are filtered, {@link Filter#ADAPTIVE} by default
+	 * @param threads number of threads that compress blocks, 1 by default
+	 */
+	public PngWriter(OutputStream out, int width, int height, boolean alpha, int level, Filter filter, int threads) 
+			throws IOException {
+		if(width < 1 || height < 1) {
+			throw new IllegalArgumentException("image size must be at least 1x1");
+		}
+		if(level < 0 || level > 9) {
+			throw new IllegalArgumentException("compression level must be between 0 and 9");
+		}
+		if(threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.out = out;
+		this.width = width;
+		this.height = height;
+		this.channels = alpha ? 4 : 3;
+		this.level = level;
+		this.filter = filter;
+		this.threads = threads;
+
+		out.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;						// bits per channel
+		header[9] = (byte) (alpha ? 6 : 2);	// color type RGBA or RGB
+		header[10] = header[11] = header[12] = 0;	// deflate, adaptive filtering, no interlace
+		writeChunk(out, "IHDR", header, 0, header.length);
+
+		batch = new byte[BATCH_ROWS * width * channels];
+		encoder = new Thread(new Encoder(), "png-encoder");
+		encoder.setDaemon(true);
+		encoder.start();
+	}
+
+	@Override
+	public void writeRow(int[] argb, int offset, int width) throws IOException {
+		if(width != this.width) {
+			throw new IllegalArgumentException("row width is " + width + " instead of " + this.width);
+		}
+		if(rows == height) {
+			throw new IllegalStateException("all the rows were written");
+		}
+		checkFailure();
+
+		int p = batchRows * width * channels;
+		if(channels == 4) {
+			for(int i=offset;i<offset+width;i++) {
+				int v = argb[i];
+				batch[p++] = (byte) (v >> 16);
+				batch[p++] = (byte) (v >> 8);
+				batch[p++] = (byte) v;
+				batch[p++] = (byte) (v >>> 24);
+			}
+		} else {
+			for(int i=offset;i<offset+width;i++) {
+				int v = argb[i];
+				batch[p++] = (byte) (v >> 16);
+				batch[p++] = (byte) (v >> 8);
+				batch[p++] = (byte) v;
+			}
+		}
+		rows++;
+		if(++batchRows == BATCH_ROWS || rows == height) {
+			put(batchRows == BATCH_ROWS ? batch : Arrays.copyOf(batch, batchRows * width * channels));
+			batch = new byte[BATCH_ROWS * width * channels];
+			batchRows = 0;
+		}
+	}
+
+	/**
+	 * write all the rows of an image.
+	 * @param image an image of the writer size
+	 * @throws IOException if the rows cannot be written
+	 */
+	public void write(BufferedImage image) throws IOException {
+		if(image.getWidth() != width || image.getHeight() != height) {
+			throw new IllegalArgumentException("image size is not " + width + "x" + height);
+		}
+		PixelBuffer pixels = PixelBuffer.wrap(image);
+		int[] row = new int[width];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				row[x] = pixels.getARGB(x, y);
+			}
+			writeRow(row, 0, width);
+		}
+	}
+
+	/**
+	 * wait for the encoding to end and write the end of the PNG.
+	 * @throws IOException if not all the rows were written or the PNG cannot be written
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if(encoder.isAlive()) {
+				// an empty batch ends the encoding
+				put(new byte[0]);
+				try {
+					encoder.join();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while encoding", e);
+				}
+			}
+			checkFailure();
+			if(rows != height) {
+				throw new IOException("only " + rows + " of " + height + " rows were written");
+			}
+			writeChunk(out, "IEND", new byte[0], 0, 0);
+			out.flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void put(byte[] rows) throws IOException {
+		try {
+			while(!queue.offer(rows, 100, TimeUnit.MILLISECONDS)) {
+				// the encoder stopped on a failure and does not take batches anymore
+				checkFailure();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while encoding", e);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if(failure != null) {
+			throw new IOException("failed to encode the image", failure);
+		}
+	}
+
+	/**
+	 * collects the batches to blocks and writes the compressed blocks in order until an empty batch.
+	 */
+	private class Encoder implements Runnable {
+
+		@Override
+		public void run() {
+			int stride = width * channels;
+			int blockRows = Math.max(1, BLOCK_SIZE / (stride + 1));
+			ExecutorService pool = null;
+			if(threads > 1) {
+				pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "png-deflate");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			try {
+				ChunkOutputStream idat = new ChunkOutputStream(out);
+				// zlib header, 32K window, no dictionary, the level hint is informative only
+				int flags = level < 2 ? 0x01 : (level < 6 ? 0x5E : (level == 6 ? 0x9C : 0xDA));
+				idat.write(new byte[] { 0x78, (byte) flags }, 0, 2);
+				long adler = 1;
+
+				ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+				byte[] prevAbove = null, prev = null, block = new byte[blockRows * stride];
+				int prevRows = 0, rows = 0, total = 0;
+				while(true) {
+					byte[] batch = queue.take();
+					for(int p=0;p<batch.length;p+=stride) {
+						System.arraycopy(batch, p, block, rows * stride, stride);
+						rows++;
+						total++;
+						if(rows == blockRows || total == height) {
+							BlockTask task = new BlockTask(prevAbove, prev, prevRows, block, rows, total == height);
+							pending.add(pool != null ? pool.submit(task) : CompletableFuture.completedFuture(task.call()));
+							prevAbove = prevRows > 0 ? Arrays.copyOfRange(prev, (prevRows - 1) * stride, prevRows * stride) : null;
+							prev = block;
+							prevRows = rows;
+							block = new byte[blockRows * stride];
+							rows = 0;
+						}
+						// keep a few blocks per thread in flight so the memory stays bounded
+						while(pending.size() > 2 * threads || (!pending.isEmpty() && pending.peek().isDone())) {
+							adler = write(idat, pending.poll().get(), adler);
+						}
+					}
+					if(batch.length == 0) {
+						break;
+					}
+				}
+				while(!pending.isEmpty()) {
+					adler = write(idat, pending.poll().get(), adler);
+				}
+				if(total == height) {
+					idat.write(new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler }, 0, 4);
+				}
+				idat.flush();
+			} catch(IOException e) {
+				failure = e;
+			} catch(InterruptedException e) {
+				failure = new IOException("interrupted while encoding", e);
+			} catch(ExecutionException e) {
+				failure = new IOException(e.getCause());
+			} catch(RuntimeException | Error e) {
+				failure = new IOException(e);
+			} finally {
+				if(pool != null) {
+					pool.shutdownNow();
+				}
+			}
+		}
+
+		private long write(ChunkOutputStream idat, Block block, long adler) throws IOException {
+			idat.write(block.data, 0, block.length);
+			return combineAdler(adler, block.adler, block.rawLength);
+		}
+	}
+
+	/**
+	 * a compressed block, raw deflate data that ends on a byte boundary.
+	 */
+	private static class Block {
+		byte[] data;
+		int length;
+		long adler;
+		long rawLength;
+	}
+
+	/**
+	 * filters and compresses the rows of a block.<br>
+	 * the block is compressed on its own with the end of the previous block as the 
+	 * dictionary, the previous rows are filtered again for the dictionary so blocks
+	 * do not wait for each other. every block but the last ends with a sync flush
+	 * so the blocks are joined as they are.
+	 */
+	private class BlockTask implements Callable<Block> {
+
+		private final byte[] prevAbove, prev, block;
+		private final int prevRows, rows;
+		private final boolean last;
+
+		/**
+		 * @param prevAbove the row before the previous block, null if it is the first block
+		 * @param prev the previous block, null if this is the first block
+		 * @param prevRows number of rows in prev
+		 * @param block the rows of this block
+		 * @param rows number of rows in block
+		 * @param last true if this is the last block of the image
+		 */
+		BlockTask(byte[] prevAbove, byte[] prev, int prevRows, byte[] block, int rows, boolean last) {
+			this.prevAbove = prevAbove;
+			this.prev = prev;
+			this.prevRows = prevRows;
+			this.block = block;
+			this.rows = rows;
+			this.last = last;
+		}
+
+		@Override
+		public Block call() {
+			int stride = width * channels, line = stride + 1;
+			byte[] filtered = new byte[rows * line];
+			byte[][] scratch = filter == Filter.ADAPTIVE ? new byte[5][stride] : null;
+			for(int r=0;r<rows;r++) {
+				byte[] up = r > 0 ? block : (prev != null ? prev : null);
+				int u = r > 0 ? (r - 1) * stride : (prevRows - 1) * stride;
+				filterRow(block, r * stride, up, u, stride, filtered, r * line, scratch);
+			}
+
+			Deflater deflater = new Deflater(level, true);
+			if(filter != Filter.NONE && level >= 6) {
+				// filtered data is mostly small values, about 10% smaller and 25% slower
+				deflater.setStrategy(Deflater.FILTERED);
+			}
+			try {
+				if(prev != null) {
+					int count = Math.min(prevRows, (WINDOW + line - 1) / line);
+					byte[] dictionary = new byte[count * line];
+					for(int r=prevRows-count, i=0;r<prevRows;r++, i++) {
+						byte[] up = r > 0 ? prev : prevAbove;
+						int u = r > 0 ? (r - 1) * stride : 0;
+						filterRow(prev, r * stride, up, u, stride, dictionary, i * line, scratch);
+					}
+					int length = Math.min(dictionary.length, WINDOW);
+					deflater.setDictionary(dictionary, dictionary.length - length, length);
+				}
+				deflater.setInput(filtered);
+				if(last) {
+					deflater.finish();
+				}
+
+				Block result = new Block();
+				result.data = new byte[filtered.length / 4 + 64];
+				while(true) {
+					if(result.length == result.data.length) {
+						result.data = Arrays.copyOf(result.data, result.data.length * 2);
+					}
+					result.length += deflater.deflate(result.data, result.length, result.data.length - result.length,
+							last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+					// a sync flush is complete when all the input was taken and it leaves space in the buffer,
+					// the first call only applies the strategy
+					if(last ? deflater.finished() : deflater.needsInput() && result.length < result.data.length) {
+						break;
+					}
+				}
+				Adler32 adler = new Adler32();
+				adler.update(filtered, 0, filtered.length);
+				result.adler = adler.getValue();
+				result.rawLength = filtered.length;
+				return result;
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * filter a row to out as the filter type followed by the filtered bytes.
+	 * @param raw the rows
+	 * @param p position of the row in raw
+	 * @param up the rows that hold the row above, null for the first row of the image
+	 * @param u position of the row above in up
+	 * @param scratch five rows for the adaptive filter
+	 */
+	private void filterRow(byte[] raw, int p, byte[] up, int u, int stride, byte[] out, int o, byte[][] scratch) {
+		if(filter != Filter.ADAPTIVE) {
+			out[o] = (byte) filter.ordinal();
+			filterRow(filter, raw, p, up, u, stride, out, o + 1);
+			return;
+		}
+		// the filter with the smallest sum of absolute differences
+		int best = 0;
+		long min = Long.MAX_VALUE;
+		for(int f=0;f<5;f++) {
+			Filter type = Filter.values()[f];
+			filterRow(type, raw, p, up, u, stride, scratch[f], 0);
+			long sum = 0;
+			byte[] row = scratch[f];
+			for(int i=0;i<stride;i++) {
+				sum += Math.abs(row[i]);
+			}
+			if(sum < min) {
+				min = sum;
+				best = f;
+			}
+		}
+		out[o] = (byte) best;
+		System.arraycopy(scratch[best], 0, out, o + 1, stride);
+	}
+
+	private void filterRow(Filter type, byte[] raw, int p, byte[] up, int u, int stride, byte[] out, int o) {
+		int c = channels;
+		switch(type) {
+		case NONE:
+			System.arraycopy(raw, p, out, o, stride);
+			break;
+		case SUB:
+			System.arraycopy(raw, p, out, o, c);
+			for(int i=c;i<stride;i++) {
+				out[o + i] = (byte) (raw[p + i] - raw[p + i - c]);
+			}
+			break;
+		case UP:
+			for(int i=0;i<stride;i++) {
+				out[o + i] = (byte) (raw[p + i] - (up != null ? up[u + i] : 0));
+			}
+			break;
+		case AVERAGE:
+			for(int i=0;i<stride;i++) {
+				int a = i >= c ? raw[p + i - c] & 0xFF : 0, b = up != null ? up[u + i] & 0xFF : 0;
+				out[o + i] = (byte) (raw[p + i] - ((a + b) >> 1));
+			}
+			break;
+		default:
+			for(int i=0;i<stride;i++) {
+				int a = i >= c ? raw[p + i - c] & 0xFF : 0, b = up != null ? up[u + i] & 0xFF : 0;
+				int d = i >= c && up != null ? up[u + i - c] & 0xFF : 0;
+				out[o + i] = (byte) (raw[p + i] - paeth(a, b, d));
+			}
+			break;
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		if(pa <= pb && pa <= pc) {
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	/**
+	 * the Adler-32 of two pieces of data joined, from the Adler-32 of each piece.
+	 * <pre>
+	 * adler = b &lt;&lt; 16 | a, a = 1 + sum of bytes, b = sum of a after every byte (mod 65521)
+	 * a = a1 + a2 - 1
+	 * b = b1 + b2 + length2 * (a1 - 1)
+	 * </pre>
+	 */
+	static long combineAdler(long adler1, long adler2, long length2) {
+		final long BASE = 65521;
+		long a1 = adler1 & 0xFFFF, b1 = adler1 >>> 16, a2 = adler2 & 0xFFFF, b2 = adler2 >>> 16;
+		long a = (a1 + a2 + BASE - 1) % BASE;
+		long b = (b1 + b2 + (length2 % BASE) * ((a1 + BASE - 1) % BASE)) % BASE;
+		return b << 16 | a;
+	}
+
+	/**
+	 * writes the compressed data as IDAT chunks of up to {@link #CHUNK_SIZE} bytes.
+	 */
+	private static class ChunkOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int size = 0;
+
+		ChunkOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				int n = Math.min(len, CHUNK_SIZE - size);
+				System.arraycopy(b, off, buffer, size, n);
+				size += n;
+				off += n;
+				len -= n;
+				if(size == CHUNK_SIZE) {
+					flush();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(size > 0) {
+				writeChunk(out, "IDAT", buffer, 0, size);
+				size = 0;
+			}
+		}
+	}
+
+	/**
+	 * write a chunk: length, type, data and the CRC-32 of the type and the data.
+	 */
+	private static void writeChunk(OutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+		byte[] head = new byte[8];
+		putInt(head, 0, length);
+		for(int i=0;i<4;i++) {
+			head[4 + i] = (byte) type.charAt(i);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(head, 4, 4);
+		crc.update(data, offset, length);
+		byte[] tail = new byte[4];
+		putInt(tail, 0, (int) crc.getValue());
+		out.write(head);
+		out.write(data, offset, length);
+		out.write(tail);
+	}
+
+	private static void putInt(byte[] b, int offset, int v) {
+		b[offset] = (byte) (v >>> 24);
+		b[offset + 1] = (byte) (v >>> 16);
+		b[offset + 2] = (byte) (v >>> 8);
+		b[offset + 3] = (byte) v;
+	}
+}
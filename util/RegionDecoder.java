@@ -0,0 +1,211 @@
+package util;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.SampleModel;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+
+/**
+ * decode only the part of an image file that a crop needs.<br>
+ * the image size is read from the file header, the bounding box of the four points is
+ * found before decoding and only that area is decoded with
+ * {@link ImageReadParam#setSourceRegion(Rectangle)}, so a small crop of a large scan takes
+ * a small part of the decoding time and memory.<br>
+ * when the cropped image is much smaller then the area it is taken from, the area can
+ * also be decoded subsampled, keeping only every n-th pixel of every n-th row, see
+ * {@link #subsampling(int[][], int[][])}.
+ * <pre>
+ * example:
+ * try(RegionDecoder decoder = new RegionDecoder(file)) {
+ *     Rectangle region = decoder.bounds(points, RegionDecoder.MARGIN);
+ *     BufferedImage part = decoder.read(region);
+ *     mmt = PerspectiveTransform.offsetSource(mmt, region.x, region.y);
+ * }
+ * </pre>
+ */
+public class RegionDecoder implements Closeable {
+
+	/**
+	 * number of pixels around the points every interpolation may read, the widest is
+	 * {@link Interpolation#LANCZOS3} that reads 3 pixels after a position and 2 before it.
+	 */
+	public static final int MARGIN = 4;
+
+	private final ImageInputStream input;
+	private final ImageReader reader;
+	private final int width, height;
+
+	/**
+	 * open an image file and read its size.
+	 * @param file an image file in any format ImageIO can read
+	 * @throws IOException if the file cannot be read or its format is not recognized
+	 */
+	public RegionDecoder(File file) throws IOException {
+		this(ImageIO.createImageInputStream(file), file.toString());
+	}
+
+	/**
+	 * read the size of an image held in memory, for images that are received rather then
+	 * read from a file.
+	 * @param data an image file in any format ImageIO can read
+	 * @throws IOException if the format is not recognized
+	 */
+	public RegionDecoder(byte[] data) throws IOException {
+		this(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)), "image data");
+	}
+
+	private RegionDecoder(ImageInputStream input, String name) throws IOException {
+		this.input = input;
+		if(input == null) {
+			throw new IOException("cannot open " + name);
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+		if(!readers.hasNext()) {
+			input.close();
+			throw new IOException("image format is not recognized");
+		}
+		reader = readers.next();
+		try {
+			reader.setInput(input, true, true);
+			width = reader.getWidth(0);
+			height = reader.getHeight(0);
+		} catch(IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the width of the whole image
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return the height of the whole image
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the number of bytes a decoded pixel takes, read from the header before
+	 * 			decoding, 4 when the reader does not tell
+	 */
+	public int getPixelBytes() {
+		try {
+			Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+			if(types.hasNext()) {
+				SampleModel model = types.next().getSampleModel();
+				int bits = 0;
+				for(int size : model.getSampleSize()) {
+					bits += size;
+				}
+				return Math.max(1, (bits + 7) / 8);
+			}
+		} catch(IOException e) {
+			// the header was read, the decoding reports the error
+		}
+		return 4;
+	}
+
+	/**
+	 * find the area of the image a crop reads.
+	 * @param points the points of the crop, in the whole image coordinates
+	 * @param margin number of pixels to add around the points for the interpolation
+	 * @return the bounding box of the points with the margin, within the image and at
+	 * 			least one pixel in size even when the points are outside the image
+	 */
+	public Rectangle bounds(int[][] points, int margin) {
+		int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+		for(int[] p : points) {
+			x0 = Math.min(x0, p[0]);
+			y0 = Math.min(y0, p[1]);
+			x1 = Math.max(x1, p[0]);
+			y1 = Math.max(y1, p[1]);
+		}
+		x0 = clamp(x0 - margin, width - 1);
+		y0 = clamp(y0 - margin, height - 1);
+		x1 = clamp(x1 + margin, width - 1);
+		y1 = clamp(y1 + margin, height - 1);
+		return new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+	}
+
+	private static int clamp(int v, int max) {
+		return v < 0 ? 0 : (v > max ? max : v);
+	}
+
+	/**
+	 * decode a part of the image.
+	 * @param region the area to decode, see {@link #bounds(int[][], int)}
+	 * @return the decoded area, its pixel (0, 0) is the image pixel (region.x, region.y)
+	 * @throws IOException if the image cannot be decoded
+	 */
+	public BufferedImage read(Rectangle region) throws IOException {
+		return read(region, 1);
+	}
+
+	/**
+	 * decode a part of the image keeping every subsampling pixel of every subsampling row.
+	 * <pre>
+	 * the decoded pixel (x, y) is the image pixel (region.x + x*subsampling, region.y + y*subsampling)
+	 * the matrix is adjusted with
+	 * PerspectiveTransform.scaleSource(PerspectiveTransform.offsetSource(mmt, region.x, region.y), 1.0/subsampling)
+	 * </pre>
+	 * the margin of the region should be multiplied by subsampling so the decoded area
+	 * keeps a margin of decoded pixels.
+	 * @param region the area to decode, see {@link #bounds(int[][], int)}
+	 * @param subsampling 1 to decode every pixel, see {@link #subsampling(int[][], int[][])}
+	 * @return the decoded area
+	 * @throws IOException if the image cannot be decoded
+	 */
+	public BufferedImage read(Rectangle region, int subsampling) throws IOException {
+		ImageReadParam param = reader.getDefaultReadParam();
+		if(region.x != 0 || region.y != 0 || region.width != width || region.height != height) {
+			param.setSourceRegion(region);
+		}
+		if(subsampling > 1) {
+			param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+		}
+		return reader.read(0, param);
+	}
+
+	/**
+	 * plan how much to subsample the source when the cropped image is smaller then
+	 * the area it is taken from.<br>
+	 * the factor keeps the decoded area at least twice the size of the cropped image so
+	 * the pyramid levels(see {@link ImagePyramid}) still average every destination pixel 
+	 * from a few decoded pixels. the pixels in between are never decoded, a pattern finer
+	 * then the factor may alias.
+	 * <pre>
+	 * example:
+	 * square 4000x3000 taken to target 400x300 -&gt; 10 times smaller -&gt; subsampling 5
+	 * </pre>
+	 * @param square the full size of the crop, see {@link PerspectiveTransform#maximizeSquareTranslation(int[][])}
+	 * @param target the size of the cropped image, see {@link PerspectiveTransform#fitSquareTranslation(int[][], int)}
+	 * @return the subsampling factor, 1 when the cropped image is less then 4 times smaller
+	 */
+	public static int subsampling(int[][] square, int[][] target) {
+		double ratio = Math.min((double) square[2][0] / Math.max(1, target[2][0]), 
+				(double) square[2][1] / Math.max(1, target[2][1]));
+		return Math.max(1, (int) (ratio / 2));
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.dispose();
+		input.close();
+	}
+}
@@ -0,0 +1,644 @@
+package util;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import util.PixelBuffer.ArrayBuffer;
+import util.PixelBuffer.Layout;
+
+
+/**
+ * the bilinear source positions of every destination pixel of a perspective transform,
+ * calculated once and applied to many source images of the same size.<br>
+ * every destination pixel keeps the index of the top left pixel of its source position and
+ * the fractions of the position between it and its neighbors, applying the table only
+ * gathers four pixels and blends them, the transform is never evaluated again.
+ * <pre>
+ * example, the same area of every frame of a fixed camera:
+ * RemapTable table = new RemapTable(mmt, width, height, frameWidth, frameHeight);
+ * for(BufferedImage frame : frames) {
+ *     table.apply(frame, destination, options);
+ * }
+ * </pre>
+ * the fractions are kept in 8 bits and the blend is done in integers, so a channel may
+ * differ by one from {@link PerspectiveTransform#writeTransformed(BufferedImage, int, int, double[][], BufferedImage, WarpOptions) writeTransformed}
+ * with {@link Interpolation#BILINEAR}, 16 bit channels by up to 1/256 of their range. the pixels near the source edges are blended
+ * the same as {@link Pixels#smoth(double, double, PixelBuffer)}, neighbors outside the image
+ * are zero.<br>
+ * the table takes 6 bytes for every destination pixel in memory, about 3 when saved.
+ * <pre>
+ * saved format, big endian:
+ * int     0x524D4150 ("RMAP")
+ * int     format version, 1
+ * int     width, height, source width, source height
+ * double  the 9 matrix values by rows
+ * varint  for every destination pixel from the top, the difference of its source index
+ *         from the pixel before it, zigzag encoded 7 bits a byte
+ * short   for every destination pixel from the top, its x fraction in the high byte and
+ *         its y fraction in the low byte
+ * </pre>
+ */
+public class RemapTable {
+
+	private static final int MAGIC = 0x524D4150, VERSION = 1;
+
+	/**
+	 * the index of a destination pixel whose source position is outside the image.
+	 */
+	private static final int OUTSIDE = Integer.MIN_VALUE;
+
+	/**
+	 * number of destination rows built together by {@link #apply(BufferedImage, ScanlineSink, WarpOptions)}.
+	 */
+	private static final int STRIP_ROWS = 64;
+
+	private final double[][] mmt;
+	private final int width, height, sourceWidth, sourceHeight;
+	/**
+	 * y*sourceWidth + x of the top left source pixel, -1 - index when some of its neighbors
+	 * are outside the image, {@link #OUTSIDE} when the position is outside the image
+	 */
+	private final int[] index;
+	/**
+	 * the x fraction in the high byte and the y fraction in the low byte
+	 */
+	private final short[] weights;
+
+	/**
+	 * calculate the source positions of every destination pixel.
+	 * @param mmt a perspective transform matrix made by {@link PerspectiveTransform#matrix(int[][],int[][]) matrix}
+	 * 			in the coordinates of the source images
+	 * @param width the width of the destination image
+	 * @param height the height of the destination image
+	 * @param sourceWidth the width of the source images
+	 * @param sourceHeight the height of the source images
+	 */
+	public RemapTable(double[][] mmt, int width, int height, int sourceWidth, int sourceHeight) {
+		this(copy(mmt), width, height, sourceWidth, sourceHeight, new int[checkedSize(width, height, sourceWidth, sourceHeight)],
+				new short[width*height]);
+
+		double m00 = mmt[0][0], m01 = mmt[0][1], m02 = mmt[0][2],
+			   m10 = mmt[1][0], m11 = mmt[1][1], m12 = mmt[1][2],
+			   m20 = mmt[2][0], m21 = mmt[2][1], m22 = mmt[2][2];
+		double X, Y, W;
+		int i = 0;
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++, i++) {
+				W = x*m20 + y*m21 + m22;
+				X = (x*m00 + y*m01 + m02) / W;
+				Y = (x*m10 + y*m11 + m12) / W;
+
+				// the same pixel and fractions as Pixels.smoth
+				int sx = (int) X, sy = (int) Y;
+				double dx = Math.abs(X) - Math.abs(sx), dy = Math.abs(Y) - Math.abs(sy);
+				int fx = (int) (dx*256 + 0.5), fy = (int) (dy*256 + 0.5);
+				if(fx == 256) {
+					sx++;
+					fx = 0;
+				}
+				if(fy == 256) {
+					sy++;
+					fy = 0;
+				}
+				if(!(sx >= 0 && sx < sourceWidth && sy >= 0 && sy < sourceHeight)) {
+					index[i] = OUTSIDE;
+					continue;
+				}
+				int p = sy*sourceWidth + sx;
+				index[i] = sx+1 < sourceWidth && sy+1 < sourceHeight ? p : -1 - p;
+				weights[i] = (short) (fx << 8 | fy);
+			}
+		}
+	}
+
+	private RemapTable(double[][] mmt, int width, int height, int sourceWidth, int sourceHeight,
+			int[] index, short[] weights) {
+		this.mmt = mmt;
+		this.width = width;
+		this.height = height;
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		this.index = index;
+		this.weights = weights;
+	}
+
+	/**
+	 * @return the number of destination pixels
+	 */
+	private static int checkedSize(int width, int height, int sourceWidth, int sourceHeight) {
+		if(width < 1 || height < 1 || sourceWidth < 1 || sourceHeight < 1) {
+			throw new IllegalArgumentException("dimensions must be positive");
+		}
+		if((long) width * height > Integer.MAX_VALUE - 8 || (long) sourceWidth * sourceHeight > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("images of more then 2^31 pixels are not supported");
+		}
+		return width*height;
+	}
+
+	private static double[][] copy(double[][] mmt) {
+		return new double[][] { mmt[0].clone(), mmt[1].clone(), mmt[2].clone() };
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getSourceWidth() {
+		return sourceWidth;
+	}
+
+	public int getSourceHeight() {
+		return sourceHeight;
+	}
+
+	/**
+	 * @return true if this table was calculated from the same matrix and dimensions, so it
+	 * 			can be used instead of calculating a new one
+	 */
+	public boolean matches(double[][] mmt, int width, int height, int sourceWidth, int sourceHeight) {
+		return this.width == width && this.height == height
+				&& this.sourceWidth == sourceWidth && this.sourceHeight == sourceHeight
+				&& Arrays.deepEquals(this.mmt, mmt);
+	}
+
+	/**
+	 * build the destination image from source.<br>
+	 * the images in the layouts of {@link LayoutKernel} and the int images are built directly
+	 * in the destination array, any other pair is blended as packed ARGB.
+	 * @param source an image of {@link #getSourceWidth()} x {@link #getSourceHeight()}
+	 * @param destination an image of at least {@link #getWidth()} x {@link #getHeight()}
+	 * @param options only the parallelism and the pool are used, the table is always bilinear
+	 */
+	public void apply(BufferedImage source, BufferedImage destination, WarpOptions options) {
+		PixelBuffer src = wrapSource(source), dest = PixelBuffer.wrap(destination);
+		ForkJoinPool pool = startPool(options);
+		try {
+			applyRows(src, dest, 0, height, pool);
+		} finally {
+			stopPool(options, pool);
+		}
+	}
+
+	/**
+	 * same as {@link #apply(BufferedImage, BufferedImage, WarpOptions)} but the destination
+	 * is built in strips of rows that are passed to sink, the pixels are the same as building
+	 * a TYPE_INT_ARGB image.
+	 * @param source an image of {@link #getSourceWidth()} x {@link #getSourceHeight()}
+	 * @param sink receives the destination rows from the top, for example {@link PngWriter}
+	 * @param options only the parallelism and the pool are used
+	 * @throws IOException if the sink fails
+	 */
+	public void apply(BufferedImage source, ScanlineSink sink, WarpOptions options) throws IOException {
+		PixelBuffer src = wrapSource(source);
+		BufferedImage strip = new BufferedImage(width, Math.min(STRIP_ROWS, height), BufferedImage.TYPE_INT_ARGB);
+		int[] rows = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+		ForkJoinPool pool = startPool(options);
+		try {
+			for(int y0=0;y0<height;y0+=STRIP_ROWS) {
+				int y1 = Math.min(y0 + STRIP_ROWS, height);
+				applyRows(src, PixelBuffer.wrapRows(strip, y0), y0, y1, pool);
+				for(int y=0;y<y1-y0;y++) {
+					sink.writeRow(rows, y*width, width);
+				}
+			}
+		} finally {
+			stopPool(options, pool);
+		}
+	}
+
+	private PixelBuffer wrapSource(BufferedImage source) {
+		if(source.getWidth() != sourceWidth || source.getHeight() != sourceHeight) {
+			throw new IllegalArgumentException("the table was made for a " + sourceWidth + "x" + sourceHeight + " image");
+		}
+		return PixelBuffer.wrap(source);
+	}
+
+	private static ForkJoinPool startPool(WarpOptions options) {
+		ForkJoinPool pool = options.getPool();
+		if(pool == null && options.getParallelism() > 1) {
+			pool = new ForkJoinPool(options.getParallelism());
+		}
+		return pool;
+	}
+
+	private static void stopPool(WarpOptions options, ForkJoinPool pool) {
+		if(pool != null && pool != options.getPool()) {
+			pool.shutdown();
+		}
+	}
+
+	private void applyRows(PixelBuffer src, PixelBuffer dest, int y0, int y1, ForkJoinPool pool) {
+		if(pool == null) {
+			applyRegion(src, dest, y0, y1);
+			return;
+		}
+		int band = Math.max(1, (y1 - y0) / (pool.getParallelism() * 4));
+		pool.invoke(new BandTask(src, dest, y0, y1, band));
+	}
+
+	private class BandTask extends RecursiveAction {
+
+		private final PixelBuffer source, destination;
+		private final int y0, y1, band;
+
+		BandTask(PixelBuffer source, PixelBuffer destination, int y0, int y1, int band) {
+			this.source = source;
+			this.destination = destination;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.band = band;
+		}
+
+		@Override
+		protected void compute() {
+			if(y1 - y0 <= band) {
+				applyRegion(source, destination, y0, y1);
+				return;
+			}
+			int mid = (y0 + y1) >>> 1;
+			invokeAll(new BandTask(source, destination, y0, mid, band), new BandTask(source, destination, mid, y1, band));
+		}
+	}
+
+	/**
+	 * how the blended channels are stored in the destination.
+	 */
+	private static final int STORE_BYTES = 0, STORE_INTS = 1, STORE_SHORTS = 2, STORE_ROW = 3;
+
+	/**
+	 * build the destination rows [y0, y1).
+	 */
+	private void applyRegion(PixelBuffer src, PixelBuffer dest, int y0, int y1) {
+		Layout from = src.getLayout(), to = dest.getLayout();
+		boolean intsTo = to == Layout.INT_ARGB || to == Layout.INT_RGB;
+		// the stored channels are read directly, a gray source only into a gray destination,
+		// into other layouts it is copied to every channel through getARGB
+		boolean packed = from == Layout.INT_ARGB || from == Layout.INT_RGB || from == Layout.BYTE_BGR 
+				|| from == Layout.BYTE_ABGR || from == Layout.BYTE_GRAY && to == Layout.BYTE_GRAY;
+		int store;
+		if(src.getData() instanceof short[]) {
+			store = LayoutKernel.supports(src, dest) ? STORE_SHORTS : STORE_ROW;
+		} else if(!packed) {
+			store = STORE_ROW;
+		} else if(from == to && !intsTo) {
+			store = STORE_BYTES;
+		} else if(intsTo) {
+			store = STORE_INTS;
+		} else {
+			store = STORE_ROW;
+		}
+		int[] row = store == STORE_ROW ? new int[width] : null;
+		// the stored layouts are addressed by their array positions, the others through getARGB and setRow
+		ArrayBuffer source = packed || store == STORE_SHORTS ? (ArrayBuffer) src : null;
+		ArrayBuffer destination = store == STORE_ROW ? null : (ArrayBuffer) dest;
+		for(int y=y0;y<y1;y++) {
+			if(store == STORE_SHORTS) {
+				rowShorts(source, destination, y);
+			} else if(packed) {
+				rowPacked(source, destination, y, store, row);
+			} else {
+				rowARGB(src, y, row);
+			}
+			if(row != null) {
+				dest.setRow(0, y, row, 0, width);
+			}
+		}
+	}
+
+	/**
+	 * the array positions of the four pixels and their weights out of 65536, for the pixel i
+	 * of a source whose pixel (x, y) is at base + y*stride + x*pixel.
+	 * @return false if the source position is outside the image
+	 */
+	private boolean corners(int i, int base, int stride, int pixel, int[] at) {
+		int p = index[i];
+		if(p == OUTSIDE) {
+			return false;
+		}
+		boolean edge = p < 0;
+		if(edge) {
+			p = -1 - p;
+		}
+		int sy = p / sourceWidth, sx = p - sy*sourceWidth;
+		int w = weights[i], fx = (w >> 8) & 0xFF, fy = w & 0xFF;
+		int o11 = base + sy*stride + sx*pixel;
+		boolean right = !edge || sx+1 < sourceWidth, below = !edge || sy+1 < sourceHeight;
+		// a neighbor outside the image has no weight, its position is any pixel inside it
+		at[0] = o11;
+		at[1] = right ? o11 + pixel : o11;
+		at[2] = below ? o11 + stride : o11;
+		at[3] = right && below ? o11 + stride + pixel : o11;
+		at[4] = (256 - fx)*(256 - fy);
+		at[5] = right ? fx*(256 - fy) : 0;
+		at[6] = below ? (256 - fx)*fy : 0;
+		at[7] = right && below ? fx*fy : 0;
+		return true;
+	}
+
+	/**
+	 * build row y of a source stored in bytes or in ints into a destination of the same
+	 * byte layout, an int destination or an ARGB row, the destination is null for a row.
+	 */
+	private void rowPacked(ArrayBuffer source, ArrayBuffer destination, int y, int store, int[] row) {
+		Layout layout = source.getLayout();
+		int channels = layout.channels, pixel = layout.pixelStride;
+		int base = source.offset(0, 0), stride = sourceHeight > 1 ? source.offset(0, 1) - base : 0;
+		// without padding between the rows the array position follows from the index
+		boolean contiguous = stride == sourceWidth*pixel || sourceHeight == 1;
+		byte[] bytes = source.getData() instanceof byte[] ? (byte[]) source.getData() : null;
+		int[] ints = bytes == null ? (int[]) source.getData() : null;
+		// 0xAARRGGBB from the stored channels, an opaque source blends a constant alpha
+		boolean opaque = channels == 3;
+
+		byte[] bytesTo = store == STORE_BYTES ? (byte[]) destination.getData() : null;
+		int[] intsTo = store == STORE_INTS ? (int[]) destination.getData() : row;
+		int d = store == STORE_ROW ? 0 : destination.offset(0, y), step = store == STORE_ROW ? 1 : destination.getLayout().pixelStride;
+
+		int[] at = new int[8];
+		int i = y*width;
+		for(int x=0;x<width;x++, i++, d+=step) {
+			int p = index[i];
+			int v0, v1 = 0, v2 = 0, v3 = 0;
+			int o11, o12, o21, o22, w11, w12, w21, w22;
+			if(p >= 0) {
+				int w = weights[i], fx = (w >> 8) & 0xFF, fy = w & 0xFF;
+				o11 = contiguous ? base + p*pixel : base + (p / sourceWidth)*stride + (p % sourceWidth)*pixel;
+				o12 = o11 + pixel;
+				o21 = o11 + stride;
+				o22 = o21 + pixel;
+				w11 = (256 - fx)*(256 - fy);
+				w12 = fx*(256 - fy);
+				w21 = (256 - fx)*fy;
+				w22 = fx*fy;
+			} else if(corners(i, base, stride, pixel, at)) {
+				o11 = at[0];
+				o12 = at[1];
+				o21 = at[2];
+				o22 = at[3];
+				w11 = at[4];
+				w12 = at[5];
+				w21 = at[6];
+				w22 = at[7];
+			} else {
+				if(bytesTo != null) {
+					for(int c=0;c<channels;c++) {
+						bytesTo[d + c] = 0;
+					}
+				} else {
+					intsTo[d] = 0;
+				}
+				continue;
+			}
+
+			if(ints != null) {
+				int p11 = ints[o11], p12 = ints[o12], p21 = ints[o21], p22 = ints[o22];
+				// v0..v3 are B G R A
+				v0 = ((p11 & 0xFF)*w11 + (p12 & 0xFF)*w12 + (p21 & 0xFF)*w21 + (p22 & 0xFF)*w22) >>> 16;
+				v1 = ((p11>>8 & 0xFF)*w11 + (p12>>8 & 0xFF)*w12 + (p21>>8 & 0xFF)*w21 + (p22>>8 & 0xFF)*w22) >>> 16;
+				v2 = ((p11>>16 & 0xFF)*w11 + (p12>>16 & 0xFF)*w12 + (p21>>16 & 0xFF)*w21 + (p22>>16 & 0xFF)*w22) >>> 16;
+				v3 = opaque
+						? (0xFF*(w11 + w12 + w21 + w22)) >>> 16
+						: ((p11>>>24)*w11 + (p12>>>24)*w12 + (p21>>>24)*w21 + (p22>>>24)*w22) >>> 16;
+				intsTo[d] = v3 << 24 | v2 << 16 | v1 << 8 | v0;
+				continue;
+			}
+
+			// the channels in the order they are stored in the source
+			v0 = blend(bytes, o11, o12, o21, o22, w11, w12, w21, w22);
+			if(channels > 1) {
+				v1 = blend(bytes, o11 + 1, o12 + 1, o21 + 1, o22 + 1, w11, w12, w21, w22);
+				v2 = blend(bytes, o11 + 2, o12 + 2, o21 + 2, o22 + 2, w11, w12, w21, w22);
+				v3 = channels > 3
+						? blend(bytes, o11 + 3, o12 + 3, o21 + 3, o22 + 3, w11, w12, w21, w22)
+						: (0xFF*(w11 + w12 + w21 + w22)) >>> 16;
+			}
+			if(bytesTo != null) {
+				bytesTo[d] = (byte) v0;
+				if(channels > 1) {
+					bytesTo[d + 1] = (byte) v1;
+					bytesTo[d + 2] = (byte) v2;
+					if(channels > 3) {
+						bytesTo[d + 3] = (byte) v3;
+					}
+				}
+			} else {
+				// ABGR to 0xAARRGGBB, BGR to 0xFFRRGGBB
+				intsTo[d] = channels == 4
+						? v0 << 24 | v3 << 16 | v2 << 8 | v1
+						: v3 << 24 | v2 << 16 | v1 << 8 | v0;
+			}
+		}
+	}
+
+	private static int blend(byte[] src, int p11, int p12, int p21, int p22, int w11, int w12, int w21, int w22) {
+		return ((src[p11] & 0xFF)*w11 + (src[p12] & 0xFF)*w12 + (src[p21] & 0xFF)*w21 + (src[p22] & 0xFF)*w22) >>> 16;
+	}
+
+	/**
+	 * build row y of a 16 bit source into a 16 bit destination, see {@link LayoutKernel#supports(PixelBuffer, PixelBuffer)}.
+	 */
+	private void rowShorts(ArrayBuffer source, ArrayBuffer destination, int y) {
+		int channels = source.getLayout().channels, pixel = source.getLayout().pixelStride;
+		int base = source.offset(0, 0), stride = sourceHeight > 1 ? source.offset(0, 1) - base : 0;
+		short[] src = (short[]) source.getData(), dest = (short[]) destination.getData();
+		int d = destination.offset(0, y), step = destination.getLayout().pixelStride;
+		boolean opaque = channels == 3 && step == 4;
+
+		int[] at = new int[8];
+		int i = y*width;
+		for(int x=0;x<width;x++, i++, d+=step) {
+			if(!corners(i, base, stride, pixel, at)) {
+				for(int c=0;c<step;c++) {
+					dest[d + c] = 0;
+				}
+				continue;
+			}
+			for(int c=0;c<channels;c++) {
+				dest[d + c] = (short) (((src[at[0] + c] & 0xFFFF)*(long) at[4] + (src[at[1] + c] & 0xFFFF)*(long) at[5]
+						+ (src[at[2] + c] & 0xFFFF)*(long) at[6] + (src[at[3] + c] & 0xFFFF)*(long) at[7]) >>> 16);
+			}
+			if(opaque) {
+				dest[d + 3] = (short) ((0xFFFFL*(at[4] + at[5] + at[6] + at[7])) >>> 16);
+			}
+		}
+	}
+
+	/**
+	 * build row y as packed ARGB from the pixels of any source.
+	 */
+	private void rowARGB(PixelBuffer source, int y, int[] row) {
+		// the pixel (x, y) is at y*sourceWidth + x
+		int[] at = new int[8];
+		int i = y*width;
+		for(int x=0;x<width;x++, i++) {
+			if(!corners(i, 0, sourceWidth, 1, at)) {
+				row[x] = 0;
+				continue;
+			}
+			int p11 = argb(source, at[0]), p12 = argb(source, at[1]), p21 = argb(source, at[2]), p22 = argb(source, at[3]);
+			int result = 0;
+			for(int shift=0;shift<32;shift+=8) {
+				int c = ((p11>>>shift & 0xFF)*at[4] + (p12>>>shift & 0xFF)*at[5]
+						+ (p21>>>shift & 0xFF)*at[6] + (p22>>>shift & 0xFF)*at[7]) >>> 16;
+				result |= c << shift;
+			}
+			row[x] = result;
+		}
+	}
+
+	private int argb(PixelBuffer source, int p) {
+		return source.getARGB(p % sourceWidth, p / sourceWidth);
+	}
+
+	/**
+	 * write the table in the format described in {@link RemapTable}.
+	 * @param output the stream to write to, it is not closed
+	 * @throws IOException if the stream fails
+	 */
+	public void save(OutputStream output) throws IOException {
+		DataOutputStream out = new DataOutputStream(output);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(sourceWidth);
+		out.writeInt(sourceHeight);
+		for(double[] r : mmt) {
+			for(double v : r) {
+				out.writeDouble(v);
+			}
+		}
+
+		byte[] buffer = new byte[1 << 16];
+		int n = 0, previous = 0;
+		for(int i=0;i<index.length;i++) {
+			if(n > buffer.length - 5) {
+				out.write(buffer, 0, n);
+				n = 0;
+			}
+			int delta = index[i] - previous;
+			previous = index[i];
+			// zigzag so small negative differences take one byte too
+			int z = (delta << 1) ^ (delta >> 31);
+			while((z & ~0x7F) != 0) {
+				buffer[n++] = (byte) (z & 0x7F | 0x80);
+				z >>>= 7;
+			}
+			buffer[n++] = (byte) z;
+		}
+		for(int i=0;i<weights.length;i++) {
+			if(n > buffer.length - 2) {
+				out.write(buffer, 0, n);
+				n = 0;
+			}
+			buffer[n++] = (byte) (weights[i] >> 8);
+			buffer[n++] = (byte) weights[i];
+		}
+		out.write(buffer, 0, n);
+		out.flush();
+	}
+
+	/**
+	 * read a table written by {@link #save(OutputStream)}.
+	 * @param input the stream to read from, it is not closed
+	 * @return the table
+	 * @throws IOException if the stream fails or does not hold a table
+	 */
+	public static RemapTable load(InputStream input) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		if(in.readInt() != MAGIC) {
+			throw new IOException("not a remap table");
+		}
+		int version = in.readInt();
+		if(version != VERSION) {
+			throw new IOException("unsupported remap table version " + version);
+		}
+		int width = in.readInt(), height = in.readInt(), sourceWidth = in.readInt(), sourceHeight = in.readInt();
+		double[][] mmt = new double[3][3];
+		for(double[] r : mmt) {
+			for(int j=0;j<3;j++) {
+				r[j] = in.readDouble();
+			}
+		}
+		int[] index;
+		short[] weights;
+		try {
+			index = new int[checkedSize(width, height, sourceWidth, sourceHeight)];
+			weights = new short[index.length];
+		} catch(IllegalArgumentException e) {
+			throw new IOException("invalid remap table, " + e.getMessage());
+		}
+
+		byte[] buffer = new byte[1 << 16];
+		int n = 0, end = 0, previous = 0;
+		for(int i=0;i<index.length;i++) {
+			int z = 0;
+			for(int shift=0;;shift+=7) {
+				if(n == end) {
+					end = fill(in, buffer, 0);
+					n = 0;
+				}
+				int b = buffer[n++];
+				if(shift == 28 && (b & 0xF0) != 0) {
+					// the fifth byte holds the last 4 bits and ends the value
+					throw new IOException("invalid remap table, varint longer then 32 bits");
+				}
+				z |= (b & 0x7F) << shift;
+				if(b >= 0) {
+					break;
+				}
+			}
+			previous += (z >>> 1) ^ -(z & 1);
+			index[i] = previous;
+			if(previous == OUTSIDE) {
+				continue;
+			}
+			int p = previous < 0 ? -1 - previous : previous;
+			if(p >= sourceWidth*sourceHeight) {
+				throw new IOException("invalid remap table, source index out of the image");
+			}
+			// the right and lower neighbors of an index that is not at the edge are read unchecked
+			if(previous >= 0 && (p % sourceWidth + 1 >= sourceWidth || p / sourceWidth + 1 >= sourceHeight)) {
+				throw new IOException("invalid remap table, source index at the edge not marked");
+			}
+		}
+		for(int i=0;i<weights.length;i++) {
+			while(end - n < 2) {
+				// keep a byte left over so a weight is never split between reads
+				int left = end - n;
+				if(left == 1) {
+					buffer[0] = buffer[n];
+				}
+				end = left + fill(in, buffer, left);
+				n = 0;
+			}
+			weights[i] = (short) (buffer[n] << 8 | buffer[n + 1] & 0xFF);
+			n += 2;
+		}
+		return new RemapTable(mmt, width, height, sourceWidth, sourceHeight, index, weights);
+	}
+
+	/**
+	 * read at least one byte into buffer from offset.
+	 * @return the number of bytes read
+	 */
+	private static int fill(InputStream in, byte[] buffer, int offset) throws IOException {
+		int count = in.read(buffer, offset, buffer.length - offset);
+		if(count < 0) {
+			throw new EOFException("remap table is cut short");
+		}
+		return count;
+	}
+}
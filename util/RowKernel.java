@@ -0,0 +1,22 @@
+package util;
+
+
+/**
+ * builds a run of destination pixels of a transformed image, used by
+ * {@link PerspectiveTransform#writeTransformed(java.awt.image.BufferedImage, int, int, double[][], java.awt.image.BufferedImage, WarpOptions) writeTransformed}
+ * in place of its own per pixel loop.<br>
+ * a kernel must give the same pixels as exact evaluation with {@link Pixels#smoth(double, double, PixelBuffer)}.
+ */
+public interface RowKernel {
+
+	/**
+	 * build the destination pixels (x0, y) to (x1, y) into row.
+	 * @param source the original image
+	 * @param mmt a perspective transform matrix
+	 * @param row the destination pixels as packed ARGB, pixel x is stored at row[x - x0]
+	 * @param x0 the first x position
+	 * @param x1 the x position after the last one
+	 * @param y the row
+	 */
+	void writeRow(PixelBuffer source, double[][] mmt, int[] row, int x0, int x1, int y);
+}
@@ -0,0 +1,18 @@
+package util;
+import java.io.IOException;
+
+
+/**
+ * receives the rows of a destination image one after the other from the top,
+ * see {@link StreamingWarp}.
+ */
+public interface ScanlineSink {
+
+	/**
+	 * @param argb the row pixels as packed ARGB
+	 * @param offset position of the first pixel in argb
+	 * @param width number of pixels in the row
+	 * @throws IOException if the row cannot be written
+	 */
+	void writeRow(int[] argb, int offset, int width) throws IOException;
+}
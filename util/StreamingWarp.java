@@ -0,0 +1,187 @@
+package util;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * build a cropped image strip after strip without holding the whole source or
+ * destination image in memory.<br>
+ * the destination rows are built in strips, the source area every strip reads is
+ * found from the transform and decoded in bands through {@link RegionDecoder}, a band
+ * covers the areas of as many strips after it as the budget allows. finished rows are
+ * passed to a {@link ScanlineSink} in order.
+ * <pre>
+ * example:
+ * try(RegionDecoder decoder = new RegionDecoder(file)) {
+ *     new StreamingWarp(decoder, mmt, width, height, new WarpOptions()).write(sink);
+ * }
+ * </pre>
+ * memory is a source band, at most {@link #setBandPixels(long)} pixels unless a single strip
+ * needs more, and a destination strip. a strip of a quad that is rotated needs the source rows
+ * its whole width crosses.<br>
+ * the JPEG and PNG readers decode an image from its start for every band, so fewer larger
+ * bands decode faster, TIFF strips and tiles are read directly.<br>
+ * the source positions are relative to each band so a channel may differ by one from
+ * {@link PerspectiveTransform#writeTransformed(BufferedImage, int, int, double[][], BufferedImage, WarpOptions) writeTransformed}
+ * of the whole image. image pyramids are not supported.
+ */
+public class StreamingWarp {
+
+	private final RegionDecoder decoder;
+	private final double[][] mmt;
+	private final int width, height;
+	private final WarpOptions options;
+	private int stripRows = 64;
+	private long bandPixels = 1L << 25;
+
+	/**
+	 * @param decoder the source image
+	 * @param mmt a perspective transform matrix made by {@link PerspectiveTransform#matrix(int[][],int[][]) matrix}
+	 * 			in the coordinates of the whole source image
+	 * @param width the width of the destination image
+	 * @param height the height of the destination image
+	 * @param options settings for building every strip, without a pyramid
+	 */
+	public StreamingWarp(RegionDecoder decoder, double[][] mmt, int width, int height, WarpOptions options) {
+		if(options.getPyramid() != null) {
+			throw new IllegalArgumentException("pyramid is not supported");
+		}
+		this.decoder = decoder;
+		this.mmt = mmt;
+		this.width = width;
+		this.height = height;
+		this.options = options;
+	}
+
+	/**
+	 * @param stripRows number of destination rows built together, 64 by default
+	 * @return this
+	 */
+	public StreamingWarp setStripRows(int stripRows) {
+		if(stripRows < 1) {
+			throw new IllegalArgumentException("strip rows must be at least 1");
+		}
+		this.stripRows = stripRows;
+		return this;
+	}
+
+	/**
+	 * @param bandPixels number of source pixels decoded together, 32M by default
+	 * @return this
+	 */
+	public StreamingWarp setBandPixels(long bandPixels) {
+		if(bandPixels < 1) {
+			throw new IllegalArgumentException("band pixels must be at least 1");
+		}
+		this.bandPixels = bandPixels;
+		return this;
+	}
+
+	/**
+	 * build the destination image and pass its rows to sink.
+	 * @param sink receives the destination rows from the top
+	 * @throws IOException if the source cannot be decoded or the sink fails
+	 */
+	public void write(ScanlineSink sink) throws IOException {
+
+		// every strip reads within the area of the whole crop
+		Rectangle crop = sourceBounds(0, height);
+
+		BufferedImage strip = new BufferedImage(width, Math.min(stripRows, height), BufferedImage.TYPE_INT_ARGB);
+		int[] rows = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+
+		// one pool builds every strip, the options of the caller are not changed
+		ForkJoinPool pool = options.getPool();
+		if(pool == null && options.getParallelism() > 1) {
+			pool = new ForkJoinPool(options.getParallelism());
+		}
+		WarpOptions stripOptions = new WarpOptions()
+				.setParallelism(options.getParallelism())
+				.setPool(pool)
+				.setIncremental(options.isIncremental())
+				.setInterpolation(options.getInterpolation())
+				.setVectorized(options.isVectorized());
+		try {
+			writeStrips(sink, crop, strip, rows, stripOptions);
+		} finally {
+			if(pool != null && pool != options.getPool()) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	private void writeStrips(ScanlineSink sink, Rectangle crop, BufferedImage strip, int[] rows, WarpOptions options) 
+			throws IOException {
+		Rectangle band = null;
+		BufferedImage source = null;
+		for(int y0=0;y0<height;y0+=stripRows) {
+			int y1 = Math.min(y0 + stripRows, height);
+			Rectangle need = sourceBounds(y0, y1).intersection(crop);
+
+			if(band == null || !band.contains(need)) {
+				// cover the strips after this one as long as the band stays within the budget,
+				// the previous band is released first so two bands are never held together
+				source = null;
+				band = need;
+				for(int next=y1;next<height;next+=stripRows) {
+					Rectangle more = band.union(sourceBounds(next, Math.min(next + stripRows, height)).intersection(crop));
+					if((long) more.width * more.height > bandPixels) {
+						break;
+					}
+					band = more;
+				}
+				source = decoder.read(band);
+			}
+
+			// the strip rows start at y0 and the band at (band.x, band.y)
+			double[][] m = PerspectiveTransform.offsetSource(offsetDestination(mmt, y0), band.x, band.y);
+			PerspectiveTransform.writeTransformed(source, width, y1 - y0, m, strip, options);
+
+			for(int y=0;y<y1-y0;y++) {
+				sink.writeRow(rows, y*width, width);
+			}
+		}
+	}
+
+	/**
+	 * @return a matrix that builds the destination from row y0 as its first row
+	 */
+	private static double[][] offsetDestination(double[][] mmt, int y0) {
+		double[][] result = new double[3][];
+		for(int i=0;i<3;i++) {
+			result[i] = new double[] { mmt[i][0], mmt[i][1], mmt[i][2] + y0*mmt[i][1] };
+		}
+		return result;
+	}
+
+	/**
+	 * find the source area the destination rows [y0, y1) read.<br>
+	 * the transform maps the destination rectangle to a four sided shape so the
+	 * corners bound it, unless the rectangle crosses the line the transform sends to
+	 * infinity where the whole source is used.
+	 */
+	private Rectangle sourceBounds(int y0, int y1) {
+		double[][] corners = { {0, y0}, {width, y0}, {width, y1}, {0, y1} };
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		double sign = 0;
+		for(double[] c : corners) {
+			double W = c[0]*mmt[2][0] + c[1]*mmt[2][1] + mmt[2][2];
+			if(W == 0 || sign*W < 0) {
+				return new Rectangle(0, 0, decoder.getWidth(), decoder.getHeight());
+			}
+			sign = Math.signum(W);
+			double X = (c[0]*mmt[0][0] + c[1]*mmt[0][1] + mmt[0][2]) / W;
+			double Y = (c[0]*mmt[1][0] + c[1]*mmt[1][1] + mmt[1][2]) / W;
+			minX = Math.min(minX, X);
+			minY = Math.min(minY, Y);
+			maxX = Math.max(maxX, X);
+			maxY = Math.max(maxY, Y);
+		}
+		int[][] box = { {(int) Math.max(Math.floor(minX), -1), (int) Math.max(Math.floor(minY), -1)},
+						{(int) Math.min(Math.ceil(maxX), decoder.getWidth()), (int) Math.min(Math.ceil(maxY), decoder.getHeight())} };
+		return decoder.bounds(box, RegionDecoder.MARGIN);
+	}
+}
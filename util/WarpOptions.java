@@ -0,0 +1,141 @@
+package util;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * settings for building a transformed image with
+ * {@link PerspectiveTransform#writeTransformed(java.awt.image.BufferedImage, int, int, double[][], java.awt.image.BufferedImage, WarpOptions) writeTransformed}.
+ * <pre>
+ * example:
+ * new WarpOptions().setParallelism(8)
+ * </pre>
+ */
+public class WarpOptions {
+
+	private int parallelism = 1;
+	private ForkJoinPool pool = null;
+	private boolean incremental = false;
+	private Interpolator interpolation = Interpolation.BILINEAR;
+	private boolean vectorized = true;
+	private ImagePyramid pyramid = null;
+
+	/**
+	 * @return number of threads the destination image is built with
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism number of threads the destination image is built with,
+	 * 			1 builds it on the calling thread.
+	 * @return this options
+	 */
+	public WarpOptions setParallelism(int parallelism) {
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * @return the pool that runs the parallel work or null if a pool is created for every image
+	 */
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @param pool a pool to run the parallel work on, shared between images.
+	 * 			when null a pool with {@link #getParallelism()} threads is created for every image.
+	 * @return this options
+	 */
+	public WarpOptions setPool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * @return true if the source position is advanced along each row instead of evaluated for every pixel
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * choose how the source position of every destination pixel is found.<br>
+	 * exact evaluation calculates the matrix multiplication for every pixel, incremental
+	 * evaluation adds the constant step of the numerators and the denominator along a row
+	 * and evaluates exactly every 32 pixels. the source positions differ from the exact
+	 * ones by less then 1e-9 of a pixel inside source images under 100000 pixels wide, a channel
+	 * may still differ by one where the blend lands on a rounding boundary, mostly the alpha of
+	 * opaque pixels since the blend weights add up to 1 only within rounding.
+	 * @param incremental true for incremental evaluation, false(default) for exact evaluation
+	 * @return this options
+	 */
+	public WarpOptions setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		return this;
+	}
+
+	/**
+	 * @return the way the source image is sampled between its pixels
+	 */
+	public Interpolator getInterpolation() {
+		return interpolation;
+	}
+
+	/**
+	 * choose how the source image is sampled between its pixels, see {@link Interpolation}.
+	 * @param interpolation the way to sample the source image, {@link Interpolation#BILINEAR} by default
+	 * @return this options
+	 */
+	public WarpOptions setInterpolation(Interpolator interpolation) {
+		if(interpolation == null) {
+			throw new IllegalArgumentException("interpolation is missing");
+		}
+		this.interpolation = interpolation;
+		return this;
+	}
+
+	/**
+	 * @return true if the vector api kernel is used when it is available
+	 */
+	public boolean isVectorized() {
+		return vectorized;
+	}
+
+	/**
+	 * use the vector api kernel(util.vector.VectorWarpKernel) for exact evaluation with
+	 * {@link Interpolation#BILINEAR}, it builds the same pixels several at a time.<br>
+	 * the kernel is available only when the program runs with 
+	 * --add-modules jdk.incubator.vector, otherwise the scalar kernel is used.
+	 * @param vectorized true(default) to use the vector api kernel when it is available
+	 * @return this options
+	 */
+	public WarpOptions setVectorized(boolean vectorized) {
+		this.vectorized = vectorized;
+		return this;
+	}
+
+	/**
+	 * @return the pyramid of the source image or null if only the full size image is sampled
+	 */
+	public ImagePyramid getPyramid() {
+		return pyramid;
+	}
+
+	/**
+	 * sample the source from its pyramid where the destination is smaller then the area it is
+	 * taken from, so every source pixel is averaged into the result instead of being skipped.
+	 * where the destination is not smaller the full size image is sampled same as without a pyramid.
+	 * the vector api kernel and the incremental evaluation are not used with a pyramid.
+	 * @param pyramid a pyramid built from the source image, or null(default) to sample only the source image
+	 * @return this options
+	 */
+	public WarpOptions setPyramid(ImagePyramid pyramid) {
+		this.pyramid = pyramid;
+		return this;
+	}
+}
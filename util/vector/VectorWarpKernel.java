@@ -0,0 +1,177 @@
+package util.vector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import util.PerspectiveTransform;
+import util.PixelBuffer;
+import util.Pixels;
+import util.RowKernel;
+
+
+/**
+ * a {@link RowKernel} that evaluates the perspective transform and blends the 
+ * pixels of a whole vector of destination pixels at once with the jdk vector api.<br>
+ * the number of pixels is the number of doubles in the widest vector the cpu
+ * has(4 with AVX2, 8 with AVX-512). positions, weights and channel blending are done
+ * on vectors with the same operations in the same order as 
+ * {@link Pixels#smoth(double, double, PixelBuffer)} so the result is identical, the
+ * four source pixels around every position are read one by one.<br>
+ * a row is built in batches of three steps(positions, reading pixels, blending) that pass
+ * their results in arrays, vectors are never passed between methods since the compiler
+ * does not always inline them and a vector that is not inlined is allocated.<br>
+ * converting between doubles and integers is done with the 2^52 trick, a double 
+ * 2^52 + n holds n in its low bits, since vector conversions are not compiled to 
+ * vector instructions on every jdk.<br>
+ * needs the jdk.incubator.vector module, run with --add-modules jdk.incubator.vector.
+ */
+public class VectorWarpKernel implements RowKernel {
+
+	private static final VectorSpecies<Double> D = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Long> I = LongVector.SPECIES_PREFERRED;
+	private static final int L = D.length();
+	
+	/**
+	 * number of pixels built in every step.
+	 */
+	private static final int BATCH = L * 32;
+	
+	private static final double MAGIC = 1L << 52;
+	private static final long MAGIC_BITS = Double.doubleToRawLongBits(MAGIC);
+	
+	private static final double[] IOTA = new double[L];
+	
+	static {
+		for(int i=0;i<L;i++) {
+			IOTA[i] = i;
+		}
+	}
+
+	@Override
+	public void writeRow(PixelBuffer source, double[][] mmt, int[] row, int x0, int x1, int y) {
+		
+		double[] xs = new double[BATCH], ys = new double[BATCH], dx = new double[BATCH], dy = new double[BATCH];
+		long[] p11 = new long[BATCH], p12 = new long[BATCH], p21 = new long[BATCH], p22 = new long[BATCH];
+		
+		// the positions of the span have all four pixels inside the image
+		int[] span = new int[2];
+		PerspectiveTransform.interiorSpan(mmt, y, x0, x1, 0, 0, source.getWidth() - 1, source.getHeight() - 1, span);
+		
+		int x = x0;
+		while(x1 - x >= L) {
+			int count = Math.min(BATCH, (x1 - x) / L * L);
+			positions(mmt, x, y, count, xs, ys);
+			int from = Math.min(Math.max(span[0] - x, 0), count), to = Math.max(Math.min(span[1] - x, count), from);
+			fetch(source, 0, from, xs, ys, dx, dy, p11, p12, p21, p22);
+			fetchInside(source, from, to, xs, ys, dx, dy, p11, p12, p21, p22);
+			fetch(source, to, count, xs, ys, dx, dy, p11, p12, p21, p22);
+			blend(count, dx, dy, p11, p12, p21, p22, row, x - x0);
+			x += count;
+		}
+		
+		// the pixels left are less then a vector
+		double m00 = mmt[0][0], m01 = mmt[0][1], m02 = mmt[0][2],
+			   m10 = mmt[1][0], m11 = mmt[1][1], m12 = mmt[1][2],
+			   m20 = mmt[2][0], m21 = mmt[2][1], m22 = mmt[2][2];
+		for(;x<x1;x++) {
+			double W = x*m20 + y*m21 + m22;
+			row[x - x0] = Pixels.smoth((x*m00 + y*m01 + m02) / W, (x*m10 + y*m11 + m12) / W, source);
+		}
+	}
+	
+	/**
+	 * source positions of count pixels from (x, y), count is a multiple of the vector length.
+	 */
+	private static void positions(double[][] mmt, int x, int y, int count, double[] xs, double[] ys) {
+		double m00 = mmt[0][0], m10 = mmt[1][0], m20 = mmt[2][0],
+			   ym01 = y*mmt[0][1], ym11 = y*mmt[1][1], ym21 = y*mmt[2][1],
+			   m02 = mmt[0][2], m12 = mmt[1][2], m22 = mmt[2][2];
+		DoubleVector iota = DoubleVector.fromArray(D, IOTA, 0);
+		for(int i=0;i<count;i+=L) {
+			DoubleVector vx = iota.add(x + i);
+			DoubleVector W = vx.mul(m20).add(ym21).add(m22);
+			vx.mul(m00).add(ym01).add(m02).div(W).intoArray(xs, i);
+			vx.mul(m10).add(ym11).add(m12).div(W).intoArray(ys, i);
+		}
+	}
+	
+	/**
+	 * read the four pixels around the positions from to to and the distances from the top left one,
+	 * everything is zero for a position outside the image.
+	 */
+	private static void fetch(PixelBuffer source, int from, int to, double[] xs, double[] ys, double[] dx, double[] dy, 
+			long[] p11, long[] p12, long[] p21, long[] p22) {
+		int width = source.getWidth(), height = source.getHeight();
+		for(int i=from;i<to;i++) {
+			int X = (int) xs[i], Y = (int) ys[i];
+			p11[i] = p12[i] = p21[i] = p22[i] = 0;
+			dx[i] = dy[i] = 0;
+			if(X >= 0 && X < width && Y >= 0 && Y < height) {
+				dx[i] = Math.abs(xs[i]) - Math.abs(X);
+				dy[i] = Math.abs(ys[i]) - Math.abs(Y);
+				p11[i] = source.getARGB(X, Y) & 0xFFFFFFFFL;
+				if(X+1 < width) {
+					p12[i] = source.getARGB(X+1, Y) & 0xFFFFFFFFL;
+				}
+				if(Y+1 < height) {
+					p21[i] = source.getARGB(X, Y+1) & 0xFFFFFFFFL;
+				}
+				if(X+1 < width && Y+1 < height) {
+					p22[i] = source.getARGB(X+1, Y+1) & 0xFFFFFFFFL;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * same as {@link #fetch(PixelBuffer, int, int, double[], double[], double[], double[], long[], long[], long[], long[]) fetch}
+	 * for positions where all four pixels are inside the image, without bounds checks.
+	 */
+	private static void fetchInside(PixelBuffer source, int from, int to, double[] xs, double[] ys, double[] dx, double[] dy, 
+			long[] p11, long[] p12, long[] p21, long[] p22) {
+		for(int i=from;i<to;i++) {
+			int X = (int) xs[i], Y = (int) ys[i];
+			dx[i] = xs[i] - X;
+			dy[i] = ys[i] - Y;
+			p11[i] = source.getARGB(X, Y) & 0xFFFFFFFFL;
+			p12[i] = source.getARGB(X+1, Y) & 0xFFFFFFFFL;
+			p21[i] = source.getARGB(X, Y+1) & 0xFFFFFFFFL;
+			p22[i] = source.getARGB(X+1, Y+1) & 0xFFFFFFFFL;
+		}
+	}
+	
+	/**
+	 * blend count pixels into row from offset, count is a multiple of the vector length.
+	 */
+	private static void blend(int count, double[] dxs, double[] dys, long[] p11, long[] p12, long[] p21, long[] p22, 
+			int[] row, int offset) {
+		long[] result = new long[L];
+		for(int i=0;i<count;i+=L) {
+			DoubleVector dx = DoubleVector.fromArray(D, dxs, i), dy = DoubleVector.fromArray(D, dys, i);
+			DoubleVector tl = dx.neg().add(1).mul(dy.neg().add(1)), tr = dx.mul(dy.neg().add(1)), 
+						 bl = dx.neg().add(1).mul(dy), br = dx.mul(dy);
+			LongVector v11 = LongVector.fromArray(I, p11, i), v12 = LongVector.fromArray(I, p12, i),
+					   v21 = LongVector.fromArray(I, p21, i), v22 = LongVector.fromArray(I, p22, i);
+			LongVector pixel = LongVector.zero(I);
+			for(int shift=0;shift<32;shift+=8) {
+				DoubleVector c = channel(v11, shift).mul(tl)
+						.add(channel(v12, shift).mul(tr))
+						.add(channel(v21, shift).mul(bl))
+						.add(channel(v22, shift).mul(br));
+				// c is between 0 and 256, adding 2^52 rounds it to the nearest integer, step back to truncate
+				DoubleVector r = c.add(MAGIC);
+				r = r.sub(1, r.sub(MAGIC).compare(VectorOperators.GT, c));
+				pixel = pixel.or(r.reinterpretAsLongs().and(0xFF).lanewise(VectorOperators.LSHL, shift));
+			}
+			pixel.intoArray(result, 0);
+			for(int j=0;j<L;j++) {
+				row[offset + i + j] = (int) result[j];
+			}
+		}
+	}
+	
+	private static DoubleVector channel(LongVector p, int shift) {
+		return p.lanewise(VectorOperators.LSHR, shift).and(0xFF).or(MAGIC_BITS).reinterpretAsDoubles().sub(MAGIC);
+	}
+}